@@ -0,0 +1,21 @@
+package eu.linksmart.services.utils.mqtt.broker;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * MqttClient giving access to the MqttAsyncClient it wraps, so the same connection can publish without blocking
+ * (see BrokerService.publishAsync).
+ */
+class AsyncAccessMqttClient extends MqttClient {
+
+    AsyncAccessMqttClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
+        super(serverURI, clientId, persistence);
+    }
+
+    MqttAsyncClient getAsyncClient() {
+        return aClient;
+    }
+}
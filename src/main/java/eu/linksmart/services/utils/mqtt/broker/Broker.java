@@ -5,6 +5,7 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 /**
@@ -32,6 +33,26 @@ public interface Broker extends Observer{
     void publish(String topic, byte[] payload) throws Exception ;
     void publish(String topic, String payload) throws Exception;
 
+    /**
+     * Publishes without waiting for the broker. The future completes when the delivery completes (for QoS 0 when the
+     * message was sent), or exceptionally if the publication failed or the in-flight window is full.
+     * The caller may reuse the payload array once the method returns, implementations keeping it longer copy it.
+     * By default the message is published synchronously.
+     * */
+    default CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            publish(topic, payload, qos, retained);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    default CompletableFuture<Void> publishAsync(String topic, byte[] payload){
+        return publishAsync(topic, payload, getConfiguration().getPubQoS(), getConfiguration().isRetainPolicy());
+    }
+
     String getBrokerName();
 
     void setBrokerName(String brokerName) throws Exception ;
@@ -63,6 +63,16 @@ public class BrokerConfiguration {
     protected int reconnectWaitingTime=60000;
     //maximum messages can be one the messaging queue waiting to be sent
     protected int maxInFlightMessages=10;
+    // DIRECT or PIPELINED publication (see PublishMode)
+    protected PublishMode publishMode = PublishMode.DIRECT;
+    // max. publications waiting in the queue of PIPELINED mode
+    protected int publishQueueCapacity = 10000;
+    // no. of connections to the broker used to publish, the topics are spread among them. Only the first one subscribes
+    protected int publishConnections = 1;
+    // no. of connections to the broker used to subscribe, each topic filter is subscribed by one of them
+    protected int subscribeConnections = 1;
+    // max. ms a subscription waits for other registrations to be sent in the same SUBSCRIBE
+    protected int subscribeLinger = 0;
     //version of the Mqtt protocol possible are 3.1 or 3.1.1. Default goes to 3.1.1, if fails then 3.1. Version 3 is a non-existing dummy enumeration member
     private MqttVersion version = MqttVersion.DEFAULT;
     // define if the reconnection is managed by paho (true) or by the BrokerService (false)
@@ -83,6 +93,7 @@ public class BrokerConfiguration {
     static private boolean loaded =false;
     @JsonIgnore
     private transient MqttConnectOptions mqttOptions = null;
+    private transient MqttConnectOptions additionalMqttOptions = null;
     @JsonIgnore
     private transient static Configurator conf = Configurator.getDefaultConfig();
     @JsonIgnore
@@ -130,6 +141,12 @@ public class BrokerConfiguration {
        return loadConfiguration(alias,brokerConfiguration);
     }
     static public MqttConnectOptions initMqttOptions(BrokerConfiguration brokerConf) throws InternalError, UnknownError{
+        return initMqttOptions(brokerConf, true);
+    }
+    /**
+     * @param withWill false for the additional connections, the will belongs only to the main connection
+     * */
+    static public MqttConnectOptions initMqttOptions(BrokerConfiguration brokerConf, boolean withWill) throws InternalError, UnknownError{
         MqttConnectOptions mqttOptions;
         try {
             mqttOptions = new MqttConnectOptions();
@@ -139,11 +156,12 @@ public class BrokerConfiguration {
             mqttOptions.setMqttVersion(brokerConf.version.ordinal());
             mqttOptions.setAutomaticReconnect(brokerConf.automaticReconnect);
             mqttOptions.setCleanSession(brokerConf.cleanSession);
+            mqttOptions.setMaxInflight(brokerConf.maxInFlightMessages);
             if(brokerConf.user!=null ) {
                 mqttOptions.setUserName(brokerConf.user);
                 mqttOptions.setPassword(brokerConf.password.toCharArray());
             }
-            if(brokerConf.will!=null&& brokerConf.willTopic!=null)
+            if(withWill && brokerConf.will!=null&& brokerConf.willTopic!=null)
                 mqttOptions.setWill(brokerConf.willTopic, brokerConf.will.getBytes(),2,false);
 
 
@@ -189,6 +207,11 @@ public class BrokerConfiguration {
             brokerConf.timeOut = getInt(BrokerServiceConst.CONNECTION_MQTT_CONNECTION_TIMEOUT, aux,  brokerConf.timeOut);
             brokerConf.keepAlive = getInt(BrokerServiceConst.CONNECTION_MQTT_KEEP_ALIVE_TIMEOUT, aux, brokerConf.keepAlive);
             brokerConf.maxInFlightMessages = getInt(BrokerServiceConst.MAX_IN_FLIGHT, aux,  brokerConf.maxInFlightMessages);
+            brokerConf.publishMode = PublishMode.valueOf(getString(BrokerServiceConst.PUBLISH_MODE, aux, brokerConf.publishMode.toString()).trim().toUpperCase());
+            brokerConf.publishQueueCapacity = getInt(BrokerServiceConst.PUBLISH_QUEUE_CAPACITY, aux, brokerConf.publishQueueCapacity);
+            brokerConf.publishConnections = getInt(BrokerServiceConst.PUBLISH_CONNECTIONS, aux, brokerConf.publishConnections);
+            brokerConf.subscribeConnections = getInt(BrokerServiceConst.SUBSCRIBE_CONNECTIONS, aux, brokerConf.subscribeConnections);
+            brokerConf.subscribeLinger = getInt(BrokerServiceConst.SUBSCRIBE_LINGER, aux, brokerConf.subscribeLinger);
             brokerConf.version =  MqttVersion.valueOf(getString(BrokerServiceConst.MQTT_VERSION, aux,  MqttVersion.DEFAULT.toString()));
             brokerConf.automaticReconnect = getBoolean(BrokerServiceConst.AUTOMATIC_RECONNECT,aux,  brokerConf.automaticReconnect);
             brokerConf.cleanSession = getBoolean(BrokerServiceConst.CLEAN_SESSION,aux,  brokerConf.cleanSession);
@@ -232,6 +255,11 @@ public class BrokerConfiguration {
             brokerConf.timeOut = reference.timeOut;
             brokerConf.keepAlive = reference.keepAlive;
             brokerConf.maxInFlightMessages = reference.maxInFlightMessages;
+            brokerConf.publishMode = reference.publishMode;
+            brokerConf.publishQueueCapacity = reference.publishQueueCapacity;
+            brokerConf.publishConnections = reference.publishConnections;
+            brokerConf.subscribeConnections = reference.subscribeConnections;
+            brokerConf.subscribeLinger = reference.subscribeLinger;
             brokerConf.version = reference.version;
             brokerConf.automaticReconnect = reference.automaticReconnect;
             brokerConf.cleanSession = reference.cleanSession;
@@ -317,11 +345,17 @@ public class BrokerConfiguration {
         return Default;
     }
     static public MqttClient initClient(BrokerConfiguration brokerConf) throws MqttException {
+        return initClient(brokerConf, brokerConf.getId());
+    }
+    /**
+     * @param clientId of the connection, the additional connections use the id of the configuration plus a suffix
+     * */
+    static public MqttClient initClient(BrokerConfiguration brokerConf, String clientId) throws MqttException {
         MqttClient mqttClient;
         if (brokerConf.filePersistence)
-            mqttClient = new MqttClient(Broker.getBrokerURL(brokerConf.getHostname(),brokerConf.getPort()),brokerConf.getId(),new MqttDefaultFilePersistence(System.getProperty("java.io.tmpdir")));
+            mqttClient = new AsyncAccessMqttClient(Broker.getBrokerURL(brokerConf.getHostname(),brokerConf.getPort()),clientId,new MqttDefaultFilePersistence(System.getProperty("java.io.tmpdir")));
         else
-            mqttClient = new MqttClient(Broker.getBrokerURL(brokerConf.getHostname(),brokerConf.getPort()),brokerConf.getId(),new MemoryPersistence());
+            mqttClient = new AsyncAccessMqttClient(Broker.getBrokerURL(brokerConf.getHostname(),brokerConf.getPort()),clientId,new MemoryPersistence());
 
         //mqttClient.connect(initMqttOptions(brokerConf));
 
@@ -432,6 +466,14 @@ public class BrokerConfiguration {
             mqttOptions = initMqttOptions(this);
         return mqttOptions;
     }
+    /**
+     * @return the options of the additional publishing and subscribing connections, as the main ones without will
+     * */
+    public MqttConnectOptions getAdditionalMqttConnectOptions(){
+        if(additionalMqttOptions==null)
+            additionalMqttOptions = initMqttOptions(this, false);
+        return additionalMqttOptions;
+    }
 
     public void setId(String id) {
         this.id = id;
@@ -524,6 +566,9 @@ public class BrokerConfiguration {
                 "\"noTries\":\""+noTries+"\"," +
                 "\"version\":\""+version.toString()+"\"," +
                 "\"inFlightMessages\":\""+maxInFlightMessages+"\"," +
+                "\"publishMode\":\""+publishMode+"\"," +
+                "\"publishConnections\":\""+publishConnections+"\"," +
+                "\"subscribeConnections\":\""+subscribeConnections+"\"," +
                 "\"reconnectWaitingTime\":\""+reconnectWaitingTime +"\""+
                 ( ( secConf != null ) ? (",\"brokerSecurityConfiguration\":"+secConf.toString() ): ("") )
                 +"}";
@@ -542,6 +587,46 @@ public class BrokerConfiguration {
         this.maxInFlightMessages = maxInFlightMessages;
     }
 
+    public PublishMode getPublishMode() {
+        return publishMode;
+    }
+
+    public void setPublishMode(PublishMode publishMode) {
+        this.publishMode = publishMode;
+    }
+
+    public int getPublishQueueCapacity() {
+        return publishQueueCapacity;
+    }
+
+    public void setPublishQueueCapacity(int publishQueueCapacity) {
+        this.publishQueueCapacity = publishQueueCapacity;
+    }
+
+    public int getPublishConnections() {
+        return publishConnections;
+    }
+
+    public void setPublishConnections(int publishConnections) {
+        this.publishConnections = publishConnections;
+    }
+
+    public int getSubscribeConnections() {
+        return subscribeConnections;
+    }
+
+    public void setSubscribeConnections(int subscribeConnections) {
+        this.subscribeConnections = subscribeConnections;
+    }
+
+    public int getSubscribeLinger() {
+        return subscribeLinger;
+    }
+
+    public void setSubscribeLinger(int subscribeLinger) {
+        this.subscribeLinger = subscribeLinger;
+    }
+
     public MqttVersion getVersion() {
         return version;
     }
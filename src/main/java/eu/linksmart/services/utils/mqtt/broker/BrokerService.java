@@ -2,7 +2,10 @@ package eu.linksmart.services.utils.mqtt.broker;
 
 
 import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryPool;
 import eu.linksmart.services.utils.mqtt.subscription.ForwardingListener;
+import eu.linksmart.services.utils.mqtt.subscription.KeyExtractor;
+import eu.linksmart.services.utils.mqtt.subscription.KeyPartitionedObserver;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.eclipse.paho.client.mqttv3.*;
@@ -10,6 +13,9 @@ import org.apache.logging.log4j.Logger;
 
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class BrokerService implements Observer, Broker {
@@ -18,10 +24,58 @@ public class BrokerService implements Observer, Broker {
     private transient Configurator conf = Configurator.getDefaultConfig();
     transient MqttClient mqttClient;
     transient ForwardingListener listener;
+    // listener of each subscribing connection, the first one is listener (see messaging_client_mqtt_subscribe_connections)
+    private final transient ForwardingListener[] listeners;
+    // connections used to subscribe, the first one is mqttClient. Each topic filter is subscribed by one of them
+    private transient volatile MqttClient[] subscribeClients;
+    // connections used to publish, the first one is mqttClient (see messaging_client_mqtt_publish_connections)
+    private transient volatile MqttClient[] publishClients;
+    // in-flight window of each publishing connection, sized by messaging_client_mqtt_maxInFlightMessages
+    private transient volatile PublishWindow[] publishWindows;
+    // queue and sender thread of each publishing connection in PIPELINED publish mode, null in DIRECT mode
+    private transient volatile PublishPipeline[] publishPipelines;
     private transient List<Observer> connectionListener = new ArrayList<>();
+    // subscribed topic filters, sent through the subscribing connection of each filter
+    protected final transient TopicSubscriptions subscriptions = new TopicSubscriptions(new TopicSubscriptions.Subscriber() {
+        @Override
+        public void subscribe(List<String> filters, List<Integer> qos) throws Exception {
+            _connect();
+            if(loggerService.isDebugEnabled())
+                loggerService.debug("subscribing to: " + String.join(",", filters));
+            BrokerService.this.subscribe(filters, qos);
+        }
+
+        @Override
+        public boolean unsubscribe(String filter) throws MqttException {
+            MqttClient client = subscribeClients[subscriptionOf(filter)];
+            if(!client.isConnected())
+                return false;
+            client.unsubscribe(filter);
+            return true;
+        }
+    }, () -> getConfiguration().getSubscribeLinger());
+    /**
+     * Read-only view of the subscribed topic filters, kept for the subclasses reading it.
+     *
+     * @deprecated the subscriptions are kept by {@link #subscriptions}, use subscriptions.getFilters() instead
+     * */
+    @Deprecated
+    protected final transient List<String> topics = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            return subscriptions.getFilters().get(index);
+        }
 
-    protected ArrayList<String> topics = new ArrayList<>();
-    private ArrayList<Integer> qoss = new ArrayList<>();
+        @Override
+        public Iterator<String> iterator() {
+            return Collections.unmodifiableList(subscriptions.getFilters()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return subscriptions.getFilters().size();
+        }
+    };
 
     private final transient static Object lock  = new Object();
 
@@ -33,6 +87,13 @@ public class BrokerService implements Observer, Broker {
         brokerConf.setWill(will);
         brokerConf.setWillTopic(topicWill);
         listener = new ForwardingListener(this,ID);
+        listeners = new ForwardingListener[Math.max(brokerConf.getSubscribeConnections(), 1)];
+        listeners[0] = listener;
+        for (int i = 1; i < listeners.length; i++) {
+            listeners[i] = new ForwardingListener(this, ID);
+            // our messages can come back through any connection
+            listeners[i].sharePublishedMessages(listener);
+        }
 
         createClient();
 
@@ -50,10 +111,32 @@ public class BrokerService implements Observer, Broker {
 
             loggerService.info("MQTT broker UUID:"+brokerConf.getId()+" Alias:"+brokerConf.getAlias()+" is connected");
         }
+        for (MqttClient client : additionalClients())
+            if(!client.isConnected())
+                client.connect(brokerConf.getAdditionalMqttConnectOptions());
+    }
+
+    /**
+     * @return the publishing and subscribing connections besides mqttClient
+     * */
+    private List<MqttClient> additionalClients() {
+        List<MqttClient> clients = new ArrayList<>();
+        for (int i = 1; i < subscribeClients.length; i++)
+            clients.add(subscribeClients[i]);
+        for (int i = 1; i < publishClients.length; i++)
+            clients.add(publishClients[i]);
+        return clients;
     }
     protected synchronized void _disconnect() throws Exception {
         loggerService.info("MQTT broker UUID:"+brokerConf.getId()+" Alias:"+brokerConf.getAlias()+" with configuration "+brokerConf.toString()+" is disconnecting...");
         try {
+            for (MqttClient client : additionalClients())
+                try {
+                    if(client.isConnected())
+                        client.disconnect();
+                }catch (Exception e){
+                    loggerService.error(e.getMessage(),e);
+                }
 
             mqttClient.disconnect();
         }catch (Exception e){
@@ -65,11 +148,30 @@ public class BrokerService implements Observer, Broker {
     }
     protected void _destroy() throws Exception {
 
+        PublishPipeline[] pipelines = publishPipelines;
+        if(pipelines != null) {
+            // hand the enqueued publications to the client while it is still connected
+            publishPipelines = null;
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DeliveryPool.getConfiguredDrainTimeout());
+            boolean drained = true;
+            for (PublishPipeline pipeline : pipelines)
+                drained = pipeline.stop(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS) && drained;
+            if(!drained)
+                loggerService.warn("Broker service destroyed before sending all the enqueued publications");
+        }
         try {
 
             if( mqttClient.isConnected())
                 _disconnect();
 
+            for (MqttClient client : additionalClients())
+                try {
+                    if(client.isConnected())
+                        client.disconnect();
+                    client.close();
+                }catch (Exception e){
+                    loggerService.error(e.getMessage(),e);
+                }
             mqttClient.close();
         }catch (Exception e){
             loggerService.error(e.getMessage(),e);
@@ -86,17 +188,56 @@ public class BrokerService implements Observer, Broker {
 
     }
     public void destroy() throws Exception {
-        _destroy();
+        try {
+            _destroy();
+        } finally {
+            // no more messages arrive, deliver the pending ones and release the delivery threads
+            closeListeners();
+        }
 
     }
 
+    /**
+     * Closes the listeners of all the subscribing connections (see ForwardingListener.close()).
+     * */
+    protected void closeListeners() {
+        for (ForwardingListener forwardingListener : listeners)
+            forwardingListener.close();
+    }
+
     public String getBrokerURL(){
         return brokerConf.getURL();
     }
 
     public void createClient() throws MqttException {
 
-        mqttClient = brokerConf.initClient();
+        mqttClient = newClient(brokerConf.getId());
+        MqttClient[] clients = new MqttClient[Math.max(brokerConf.getPublishConnections(), 1)];
+        PublishWindow[] windows = new PublishWindow[clients.length];
+        clients[0] = mqttClient;
+        for (int i = 0; i < clients.length; i++) {
+            if(i > 0) {
+                clients[i] = newClient(brokerConf.getId() + "-pub" + i);
+                clients[i].setCallback(new PublishingCallback());
+            }
+            windows[i] = new PublishWindow(brokerConf.getMaxInFlightMessages());
+        }
+        publishWindows = windows;
+        publishClients = clients;
+        MqttClient[] subscribers = new MqttClient[listeners.length];
+        subscribers[0] = mqttClient;
+        for (int i = 1; i < subscribers.length; i++) {
+            subscribers[i] = newClient(brokerConf.getId() + "-sub" + i);
+            subscribers[i].setCallback(listeners[i]);
+        }
+        subscribeClients = subscribers;
+        if(brokerConf.getPublishMode() == PublishMode.PIPELINED && publishPipelines == null) {
+            // one sender per connection, a connection waiting for its in-flight window does not stall the others
+            PublishPipeline[] pipelines = new PublishPipeline[clients.length];
+            for (int i = 0; i < pipelines.length; i++)
+                pipelines[i] = new PublishPipeline("mqtt-publisher-" + brokerConf.getId() + "-" + i, this::send, brokerConf.getPublishQueueCapacity());
+            publishPipelines = pipelines;
+        }
 
         mqttClient.setCallback(listener);
         try {
@@ -108,17 +249,179 @@ public class BrokerService implements Observer, Broker {
         }
     }
 
-    public synchronized void publish(String topic, byte[] payload, int qos, boolean retained) throws Exception {
+    /**
+     * Creates the client of a connection, called by createClient() for each publishing and subscribing connection.
+     *
+     * @param clientId of the connection, the additional connections use the id of the configuration plus a suffix
+     * */
+    protected MqttClient newClient(String clientId) throws MqttException {
+        return BrokerConfiguration.initClient(brokerConf, clientId);
+    }
+
+    /**
+     * In PIPELINED mode a copy of the payload is enqueued and the method returns without waiting; it only throws if the
+     * queue is full or stopped, later failures are logged.
+     * */
+    public void publish(String topic, byte[] payload, int qos, boolean retained) throws Exception {
+        PublishPipeline pipeline = getPublishPipeline(topic);
+        if(pipeline != null) {
+            CompletableFuture<Void> future = pipeline.enqueue(topic, payload, qos, retained);
+            if(future.isCompletedExceptionally())
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            future.whenComplete((result, e) -> {
+                if(e != null)
+                    loggerService.error("Publication in topic " + topic + " failed: " + e.getMessage(), e);
+            });
+            return;
+        }
 
-        if(!mqttClient.isConnected())
-            _connect();
+        publishDirect(topic, payload, qos, retained);
+    }
 
-        if(brokerConf.autoBlacklisting)
-            listener.addPublishedTopic(topic);
+    /**
+     * Publishes with the connection of the topic and waits for it. The publications of each connection are serialized.
+     * The publication takes a slot of the in-flight window of the connection, waiting for it if the window is full.
+     * */
+    protected void publishDirect(String topic, byte[] payload, int qos, boolean retained) throws Exception {
+        final int connection = connectionOf(topic);
+        MqttClient client = publishClients[connection];
+        PublishWindow window = publishWindows[connection];
+        window.acquire();
+        try {
+            synchronized (client) {
+                if(!client.isConnected())
+                    _connect();
 
-        mqttClient.publish(topic,payload, qos, retained);
+                if(brokerConf.autoBlacklisting)
+                    listener.addPublishedMessage(topic, payload);
 
+                client.publish(topic,payload, qos, retained);
+            }
+        } finally {
+            window.release();
+        }
     }
+
+    /**
+     * @return index of the publishing connection of the topic, the same topic always uses the same connection
+     * */
+    protected int connectionOf(String topic) {
+        int n = publishClients.length;
+        if(n == 1)
+            return 0;
+        int hash = topic.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % n;
+    }
+    /**
+     * Publishes through the asynchronous client of the connection, the calling thread neither waits for the broker nor
+     * for other publishers. At most messaging_client_mqtt_maxInFlightMessages publications per connection are pending
+     * at once, counting the synchronous ones (see PublishWindow). When the window is full the future fails immediately
+     * with MqttException.REASON_CODE_MAX_INFLIGHT so the caller can slow down or retry.
+     * In PIPELINED mode a copy of the publication is enqueued instead and the sender thread waits for the window; the
+     * future fails with REASON_CODE_MAX_INFLIGHT only if the queue is full.
+     * The client is not reconnected by this method.
+     * */
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        PublishPipeline pipeline = getPublishPipeline(topic);
+        if(pipeline != null)
+            return pipeline.enqueue(topic, payload, qos, retained);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        final int connection = connectionOf(topic);
+        if(!(publishClients[connection] instanceof AsyncAccessMqttClient)) {
+            // client created outside of BrokerConfiguration.initClient
+            try {
+                publishDirect(topic, payload, qos, retained);
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        final PublishWindow window = publishWindows[connection];
+        if(!window.tryAcquire(future))
+            return future;
+
+        // the client writes the payload after returning, the caller may reuse its array meanwhile
+        send(connection, topic, payload != null ? payload.clone() : null, qos, retained, window, future);
+        return future;
+    }
+
+    /**
+     * Sender of the PIPELINED mode, waits for a free slot of the in-flight window instead of failing.
+     * */
+    private void send(PublishPipeline.Publication publication) throws InterruptedException {
+        final int connection = connectionOf(publication.getTopic());
+        if(!(publishClients[connection] instanceof AsyncAccessMqttClient)) {
+            try {
+                publishDirect(publication.getTopic(), publication.getPayload(), publication.getQoS(), publication.isRetained());
+                publication.getFuture().complete(null);
+            } catch (Exception e) {
+                publication.getFuture().completeExceptionally(e);
+            }
+            return;
+        }
+
+        final PublishWindow window = publishWindows[connection];
+        window.acquire();
+        send(connection, publication.getTopic(), publication.getPayload(), publication.getQoS(), publication.isRetained(), window, publication.getFuture());
+    }
+
+    /**
+     * Hands the publication to the asynchronous client, the slot of the window is released when the publication completes.
+     * */
+    private void send(int connection, String topic, byte[] payload, int qos, boolean retained, PublishWindow window, CompletableFuture<Void> future) {
+        try {
+            if(brokerConf.autoBlacklisting)
+                listener.addPublishedMessage(topic, payload);
+
+            ((AsyncAccessMqttClient) publishClients[connection]).getAsyncClient().publish(topic, payload, qos, retained, null, window.completing(future));
+        } catch (Exception e) {
+            window.release();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return the queue of the PIPELINED mode of the connection publishing the topic (e.g. to read its metrics), null
+     * in DIRECT mode
+     * */
+    public PublishPipeline getPublishPipeline(String topic) {
+        PublishPipeline[] pipelines = publishPipelines;
+        return pipelines != null ? pipelines[connectionOf(topic)] : null;
+    }
+
+    /**
+     * @return the queues of the PIPELINED mode, one per publishing connection; empty in DIRECT mode
+     * */
+    public List<PublishPipeline> getPublishPipelines() {
+        PublishPipeline[] pipelines = publishPipelines;
+        return pipelines != null ? Arrays.asList(pipelines.clone()) : Collections.emptyList();
+    }
+
+    /**
+     * @return publications not completed yet (synchronous and asynchronous), in all the publishing connections
+     * */
+    public int getPendingPublications() {
+        int pending = 0;
+        for (PublishWindow window : publishWindows)
+            pending += window.getPending();
+        return pending;
+    }
+
+    /**
+     * @return no. of connections used to publish
+     * */
+    public int getPublishConnections() {
+        return publishClients.length;
+    }
+
     public void publish(String topic, byte[] payload) throws Exception {
 
         publish(
@@ -154,7 +457,47 @@ public class BrokerService implements Observer, Broker {
 
     @Override
     public boolean hasListeners() {
-        return listener.hasObservers();
+        for (ForwardingListener forwardingListener : listeners)
+            if(forwardingListener.hasObservers())
+                return true;
+        return false;
+    }
+
+    /**
+     * @return index of the subscribing connection of the topic filter, the same filter always uses the same connection
+     * */
+    protected int subscriptionOf(String topic) {
+        int n = listeners.length;
+        if(n == 1)
+            return 0;
+        int hash = topic.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % n;
+    }
+
+    /**
+     * @return true if all the subscribing and publishing connections are connected
+     * */
+    private boolean isFullyConnected() {
+        if(!mqttClient.isConnected())
+            return false;
+        for (MqttClient client : additionalClients())
+            if(!client.isConnected())
+                return false;
+        return true;
+    }
+
+    /**
+     * @return no. of connections used to subscribe
+     * */
+    public int getSubscribeConnections() {
+        return listeners.length;
+    }
+
+    /**
+     * @return the listener of the connection subscribing the topic filter, e.g. to read its metrics
+     * */
+    public ForwardingListener getListener(String topic) {
+        return listeners[subscriptionOf(topic)];
     }
 
     public void setBrokerPort(String brokerPort) throws Exception {
@@ -185,7 +528,8 @@ public class BrokerService implements Observer, Broker {
     }
     private void restart(boolean wasConnected) throws Exception {
         try {
-            destroy();
+            // the listener and its subscriptions are kept for the new client
+            _destroy();
         }catch (Exception e){
             loggerService.error("Error while restarting broker Service:"+e.getMessage(),e);
         }
@@ -199,40 +543,75 @@ public class BrokerService implements Observer, Broker {
     public boolean addListener(String topic, Observer stakeholder)  {
         return addListener(topic,stakeholder,brokerConf.getSubQoS());
     }
-    public synchronized boolean addListener(String topic, Observer stakeholder, int QoS)  {
-
+    /**
+     * Registers the stakeholder and subscribes the topic filter if it was not subscribed yet. Concurrent registrations
+     * are subscribed together (see messaging_client_mqtt_subscribe_linger).
+     * */
+    public boolean addListener(String topic, Observer stakeholder, int QoS)  {
+        ForwardingListener forwardingListener = listeners[subscriptionOf(topic)];
+        // registered first, the retained messages arrive right after the subscription
+        boolean added = forwardingListener.addObserver(topic, stakeholder);
         try {
-            _connect();
-
-            topics.add(topic);
-            qoss.add(QoS);
-
-
-            subscribeAll();
-
-            listener.addObserver(topic, stakeholder);
+            subscriptions.subscribe(topic, QoS);
         } catch (Exception e) {
             loggerService.error(e.getMessage(), e);
+            // an earlier registration of the same stakeholder is kept
+            if(added && forwardingListener.removeObserver(topic, stakeholder))
+                unsubscribeIfUnused(topic);
             return false;
         }
         return true;
     }
 
+    /**
+     * Subscribes a stakeholder that processes the messages in parallel, keeping the order only per key (e.g. per device)
+     * instead of per topic. See KeyPartitionedObserver.
+     * */
+    public boolean addListener(String topic, Observer stakeholder, KeyExtractor keyExtractor)  {
+        return addListener(topic, new KeyPartitionedObserver(stakeholder, keyExtractor, topic));
+    }
+
     @Override
     public void addConnectionListener(Observer listener) {
         connectionListener.add(listener);
     }
 
-    public synchronized boolean removeListener(String topic, Observer stakeholder){
+    /**
+     * Removes the stakeholder from the topic filter, the filter is unsubscribed when it was its last stakeholder.
+     * */
+    public boolean removeListener(String topic, Observer stakeholder){
 
-        return listener.removeObserver(topic,stakeholder);
+        if(!listeners[subscriptionOf(topic)].removeObserver(topic,stakeholder))
+            return false;
 
+        unsubscribeIfUnused(topic);
+        return true;
     }
 
-    public synchronized void removeListener( Observer stakeholder){
-        for (String topic: topics) {
-          listener.removeObserver(topic, stakeholder);
+    /**
+     * Removes the stakeholder from all the topic filters, the filters without stakeholders are unsubscribed.
+     * */
+    public void removeListener( Observer stakeholder){
+        for (String topic: subscriptions.getFilters()) {
+            if(listeners[subscriptionOf(topic)].removeObserver(topic, stakeholder))
+                unsubscribeIfUnused(topic);
+
+        }
+    }
 
+    /**
+     * Sends UNSUBSCRIBE for the topic filter if nobody observes it anymore, and forgets it so it is not subscribed
+     * again on reconnection. Serialized with the SUBSCRIBE of the batches (see TopicSubscriptions), so a filter
+     * registered again meanwhile is subscribed after being unsubscribed. If its connection is lost, the UNSUBSCRIBE is
+     * sent once it is back.
+     * */
+    private void unsubscribeIfUnused(String topic){
+        final ForwardingListener forwardingListener = listeners[subscriptionOf(topic)];
+        try {
+            if(subscriptions.unsubscribe(topic, () -> forwardingListener.countObservers(topic) == 0))
+                loggerService.info("unsubscribed from: " + topic);
+        } catch (Exception e) {
+            loggerService.error(e.getMessage(), e);
         }
     }
 
@@ -241,22 +620,74 @@ public class BrokerService implements Observer, Broker {
         return brokerConf;
     }
 
-    private synchronized void subscribeAll() throws MqttException {
-        loggerService.info( "(re)subscribing to: "+ topics.stream().collect(Collectors.joining(",")));
-        mqttClient.subscribe(topics.toArray(new String[topics.size()]), ArrayUtils.toPrimitive(qoss.toArray(new Integer[qoss.size()])));
+    /**
+     * Subscribes again the topic filters of the subscribing connections that were lost, the other connections keep
+     * their subscriptions.
+     * */
+    private void subscribeAll(boolean[] lost) throws Exception {
+        loggerService.info( "(re)subscribing the lost connections");
+        subscriptions.resubscribe(topic -> lost[subscriptionOf(topic)]);
 
     }
 
+    /**
+     * Sends one SUBSCRIBE per subscribing connection with the topic filters of the connection.
+     * */
+    private void subscribe(List<String> filters, List<Integer> qos) throws MqttException {
+        if(subscribeClients.length == 1) {
+            if(!filters.isEmpty())
+                mqttClient.subscribe(filters.toArray(new String[filters.size()]), ArrayUtils.toPrimitive(qos.toArray(new Integer[qos.size()])));
+            return;
+        }
+        for (int i = 0; i < subscribeClients.length; i++) {
+            List<String> connectionTopics = new ArrayList<>();
+            List<Integer> connectionQoSs = new ArrayList<>();
+            for (int j = 0; j < filters.size(); j++)
+                if(subscriptionOf(filters.get(j)) == i) {
+                    connectionTopics.add(filters.get(j));
+                    connectionQoSs.add(qos.get(j));
+                }
+            if(!connectionTopics.isEmpty())
+                subscribeClients[i].subscribe(connectionTopics.toArray(new String[connectionTopics.size()]), ArrayUtils.toPrimitive(connectionQoSs.toArray(new Integer[connectionQoSs.size()])));
+        }
+    }
+
+    /**
+     * Callback of the connections only publishing, their loss is handled as the one of the subscribing connections.
+     * */
+    private final class PublishingCallback implements MqttCallback {
+        @Override
+        public void connectionLost(Throwable throwable) {
+            loggerService.warn("Publishing connection lost: " + throwable.getMessage(), throwable);
+            update(null, null);
+        }
+
+        @Override
+        public void messageArrived(String topic, org.eclipse.paho.client.mqttv3.MqttMessage message) {
+            // nothing is subscribed through this connection
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+
     @Override
     public void update(Observable o, Object arg) {
 
                 loggerService.warn("Disconnection of the client with id: " + brokerConf.getId() + " and alias: " + brokerConf.getAlias() + " with conf: " + brokerConf.toString());
-                for(int i=0; i<brokerConf.getNoTries() && !mqttClient.isConnected();i++){
+                // subscribing connections to subscribe again, kept over the tries until their filters are subscribed
+                final boolean[] lost = new boolean[subscribeClients.length];
+                for(int i=0; i<brokerConf.getNoTries() && !isFullyConnected();i++){
                     try {
+                        for (int j = 0; j < lost.length; j++)
+                            lost[j] |= !subscribeClients[j].isConnected();
                         loggerService.info("Reconnecting...");
                         _connect();
 
-                        subscribeAll();
+                        subscribeAll(lost);
+                        Arrays.fill(lost, false);
+                        subscriptions.retryUnsubscribes();
 
                         if(connectionListener.size()>1)
                             connectionListener.stream().parallel().forEach(l->l.update(null, arg));
@@ -288,7 +719,7 @@ public class BrokerService implements Observer, Broker {
         if (o!=null && o instanceof BrokerService) {
             BrokerService aux = (BrokerService) o;
 
-            return brokerConf.equals(aux.brokerConf) && topics.equals(aux.topics);
+            return brokerConf.equals(aux.brokerConf) && subscriptions.getFilters().equals(aux.subscriptions.getFilters());
         }
         return false;
     }
@@ -297,7 +728,7 @@ public class BrokerService implements Observer, Broker {
 
         return "{" +
                 "\"brokerConfiguration\":"+brokerConf.toString()+"," +
-                "\"subscribedTopics\":["+topics.stream().map(i->"\""+i+"\"").collect(Collectors.joining(","))+"]" +
+                "\"subscribedTopics\":["+subscriptions.getFilters().stream().map(i->"\""+i+"\"").collect(Collectors.joining(","))+"]" +
                 "}";
 
     }
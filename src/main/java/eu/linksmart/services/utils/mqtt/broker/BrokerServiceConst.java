@@ -32,10 +32,41 @@ public interface BrokerServiceConst {
 
 
     String MAX_IN_FLIGHT = "messaging_client_mqtt_maxInFlightMessages";
+    String PUBLISH_MODE = "messaging_client_mqtt_publish_mode";
+    String PUBLISH_QUEUE_CAPACITY = "messaging_client_mqtt_publish_queue_capacity";
+    String PUBLISH_CONNECTIONS = "messaging_client_mqtt_publish_connections";
+    String SUBSCRIBE_CONNECTIONS = "messaging_client_mqtt_subscribe_connections";
+    String SUBSCRIBE_LINGER = "messaging_client_mqtt_subscribe_linger";
     String MQTT_VERSION = "messaging_client_mqtt_version";
     String AUTOMATIC_RECONNECT = "messaging_client_mqtt_automaticReconnect";
 
     String USER = "messaging_client_mqtt_security_user";
     String PASSWORD = "messaging_client_mqtt_security_password";
     String AUTOBLACKLISTING = "messaging_client_mqtt_autoblacklisting";
+    String AUTOBLACKLISTING_WINDOW = "messaging_client_mqtt_autoblacklisting_window";
+    String AUTOBLACKLISTING_MAX_ENTRIES = "messaging_client_mqtt_autoblacklisting_max_entries";
+
+    String DELIVERY_MODE = "messaging_client_mqtt_delivery_mode";
+    String DELIVERY_POOL_SIZE = "messaging_client_mqtt_delivery_pool_size";
+    String DELIVERY_POOL_THROUGHPUT = "messaging_client_mqtt_delivery_pool_throughput";
+    String DELIVERY_PROFILES = "messaging_client_mqtt_delivery_profiles";
+    String DELIVERY_PROFILE_TOPICS = "messaging_client_mqtt_delivery_topics";
+    String DELIVERY_MAILBOX = "messaging_client_mqtt_delivery_mailbox";
+    String DELIVERY_RING_SIZE = "messaging_client_mqtt_delivery_ring_size";
+    String DELIVERY_WAIT_STRATEGY = "messaging_client_mqtt_delivery_wait_strategy";
+    String DELIVERY_CAPACITY = "messaging_client_mqtt_delivery_capacity";
+    String DELIVERY_CAPACITY_BYTES = "messaging_client_mqtt_delivery_capacity_bytes";
+    String DELIVERY_OVERFLOW_POLICY = "messaging_client_mqtt_delivery_overflow_policy";
+    String DELIVERY_TTL = "messaging_client_mqtt_delivery_ttl";
+    String DELIVERY_BATCH_SIZE = "messaging_client_mqtt_delivery_batch_size";
+    String DELIVERY_BATCH_LINGER = "messaging_client_mqtt_delivery_batch_linger";
+    String DELIVERY_DRAIN_TIMEOUT = "messaging_client_mqtt_delivery_drain_timeout";
+    String DELIVERY_SHARDS = "messaging_client_mqtt_delivery_shards";
+    String DELIVERY_KEY_PARTITIONS = "messaging_client_mqtt_delivery_key_partitions";
+    String DEDUP_WINDOW = "messaging_client_mqtt_dedup_window";
+    String DEDUP_BUCKETS = "messaging_client_mqtt_dedup_buckets";
+    String DEDUP_MAX_ENTRIES = "messaging_client_mqtt_dedup_max_entries";
+
+    String TOPIC_MATCH_CACHE_SIZE = "messaging_client_mqtt_topic_match_cache_size";
+    String ROUTE_CACHE_SIZE = "messaging_client_mqtt_route_cache_size";
 }
@@ -0,0 +1,16 @@
+package eu.linksmart.services.utils.mqtt.broker;
+
+/**
+ * How BrokerService.publish hands the messages to the MQTT client (see messaging_client_mqtt_publish_mode).
+ */
+public enum PublishMode {
+    /** the publishing thread calls the client and waits for it, the publications are serialized by the service */
+    DIRECT,
+    /**
+     * the publishing thread only enqueues a copy of the message and a sender thread publishes it (see PublishPipeline),
+     * so the caller can reuse its payload array right away. publish returns without waiting and its failures are
+     * logged, publishAsync reports them in its future. When the queue is full the publication fails at once with
+     * MqttException.REASON_CODE_MAX_INFLIGHT (messaging_client_mqtt_publish_queue_capacity)
+     * */
+    PIPELINED
+}
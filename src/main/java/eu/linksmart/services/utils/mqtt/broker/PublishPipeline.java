@@ -0,0 +1,260 @@
+package eu.linksmart.services.utils.mqtt.broker;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publication path of PublishMode.PIPELINED: the publishers only enqueue in a lock-free queue and a sender thread hands
+ * each publication to the client as soon as it takes it from the queue. The publishers never wait for the client; the
+ * queue is bounded by its capacity and when it is full the publication fails at once with REASON_CODE_MAX_INFLIGHT.
+ * The payload is copied when enqueued, so the caller keeps the ownership of its array.
+ * All publications are sent by the same thread in enqueue order, therefore the order per topic is kept.
+ */
+public class PublishPipeline implements Runnable {
+    private final ConcurrentLinkedQueue<Publication> queue = new ConcurrentLinkedQueue<>();
+    // publications accepted and not taken by the sender yet, bounded by capacity
+    private final AtomicInteger depth = new AtomicInteger();
+    private final int capacity;
+    private final Sender sender;
+    private final Thread thread;
+    private volatile boolean active = true;
+    // true while the sender is parked waiting for publications
+    private volatile boolean waiting = false;
+
+    private final LongAdder enqueued = new LongAdder(), rejected = new LongAdder(), queuedNanos = new LongAdder();
+    // only written by the sender thread
+    private volatile long sent = 0, wakeUps = 0, maxBatch = 0;
+
+    /**
+     * Publishes a publication, waiting if the in-flight window is full, and completes its future when delivered.
+     * */
+    public interface Sender {
+        void send(Publication publication) throws InterruptedException;
+    }
+
+    /**
+     * @param name of the sender thread
+     * @param sender hands the publications to the client
+     * @param capacity max. publications waiting in the queue
+     * */
+    public PublishPipeline(String name, Sender sender, int capacity) {
+        this.sender = sender;
+        this.capacity = Math.max(capacity, 1);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Enqueues a copy of the publication.
+     *
+     * @return future completed when the publication is delivered. Failed with REASON_CODE_MAX_INFLIGHT if the queue is
+     * full and with REASON_CODE_CLIENT_CLOSED if the pipeline is stopped
+     * */
+    public CompletableFuture<Void> enqueue(String topic, byte[] payload, int qos, boolean retained) {
+        Publication publication = new Publication(topic, payload != null ? payload.clone() : null, qos, retained);
+        if (!active) {
+            publication.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+            return publication.future;
+        }
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            rejected.increment();
+            publication.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+            return publication.future;
+        }
+        enqueued.increment();
+        queue.add(publication);
+        if (waiting)
+            LockSupport.unpark(thread);
+        // stopped meanwhile, the sender may have ended without seeing the publication
+        if (!active && !thread.isAlive())
+            failPending();
+
+        return publication.future;
+    }
+
+    @Override
+    public void run() {
+        boolean interrupted = false;
+        while (active || !queue.isEmpty()) {
+            // publications taken since the sender woke up, only a metric: each one is sent as soon as it is taken
+            long batch = 0;
+            Publication publication;
+            while ((publication = queue.poll()) != null) {
+                depth.decrementAndGet();
+                queuedNanos.add(System.nanoTime() - publication.enqueued);
+                batch++;
+                if (interrupted) {
+                    publication.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+                    continue;
+                }
+                try {
+                    sender.send(publication);
+                } catch (InterruptedException e) {
+                    // stop() gave up waiting for the in-flight window, the rest of the queue fails as well
+                    interrupted = true;
+                    publication.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED, e));
+                } catch (Exception e) {
+                    publication.future.completeExceptionally(e);
+                }
+            }
+            if (batch > 0) {
+                sent += batch;
+                wakeUps++;
+                if (batch > maxBatch)
+                    maxBatch = batch;
+            }
+            await();
+        }
+        failPending();
+    }
+
+    private void await() {
+        waiting = true;
+        // re-check after announcing the wait, an enqueue in between would not unpark
+        if (queue.isEmpty() && active)
+            LockSupport.park(this);
+        waiting = false;
+    }
+
+    /**
+     * Stops accepting publications and waits until the enqueued ones were handed to the client. The publications not
+     * sent before the timeout fail with REASON_CODE_CLIENT_CLOSED.
+     *
+     * @return true if all the enqueued publications were sent
+     * */
+    public boolean stop(long timeout, TimeUnit unit) {
+        active = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(Math.max(unit.toMillis(timeout), 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            thread.interrupt();
+            failPending();
+            return false;
+        }
+        return true;
+    }
+
+    private void failPending() {
+        Publication publication;
+        while ((publication = queue.poll()) != null) {
+            depth.decrementAndGet();
+            publication.future.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+    }
+
+    /**
+     * @return publications waiting to be sent
+     * */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return publications accepted so far
+     * */
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    /**
+     * @return publications failed because the queue was full
+     * */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return publications handed to the client so far
+     * */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return times the sender woke up and found publications waiting
+     * */
+    public long getBatches() {
+        return wakeUps;
+    }
+
+    /**
+     * @return most publications found waiting by the sender at once
+     * */
+    public long getMaxBatchSize() {
+        return maxBatch;
+    }
+
+    /**
+     * @return mean publications found waiting each time the sender woke up, a measure of how far it runs behind
+     * */
+    public double getAverageBatchSize() {
+        long n = wakeUps;
+        return n > 0 ? (double) sent / n : 0.0;
+    }
+
+    /**
+     * @return mean ns a publication waited in the queue until the sender took it
+     * */
+    public double getAverageEnqueueLatency() {
+        long n = sent;
+        return n > 0 ? (double) queuedNanos.sum() / n : 0.0;
+    }
+
+    /**
+     * A publication waiting in the queue, with its own copy of the payload.
+     * */
+    public static final class Publication {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final long enqueued = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Publication(String topic, byte[] payload, int qos, boolean retained) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getQoS() {
+            return qos;
+        }
+
+        public boolean isRetained() {
+            return retained;
+        }
+
+        /**
+         * @return future of the publisher, the sender completes it
+         * */
+        public CompletableFuture<Void> getFuture() {
+            return future;
+        }
+    }
+}
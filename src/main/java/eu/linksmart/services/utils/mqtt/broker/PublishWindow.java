@@ -0,0 +1,79 @@
+package eu.linksmart.services.utils.mqtt.broker;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * In-flight window of a publishing connection, with as many slots as the window of the client
+ * (messaging_client_mqtt_maxInFlightMessages). Every publication of the connection holds a slot until it completes,
+ * the synchronous ones (BrokerService.publishDirect) as well as the asynchronous ones, so a publication holding a slot
+ * is never rejected by the client because its own window is full.
+ */
+public class PublishWindow {
+    private final int capacity;
+    private final Semaphore slots;
+
+    public PublishWindow(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        slots = new Semaphore(this.capacity);
+    }
+
+    /**
+     * Takes a slot without waiting.
+     *
+     * @return false if the window is full, then the future fails with MqttException.REASON_CODE_MAX_INFLIGHT
+     * */
+    public boolean tryAcquire(CompletableFuture<?> future) {
+        if (slots.tryAcquire())
+            return true;
+
+        future.completeExceptionally(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+        return false;
+    }
+
+    /**
+     * Takes a slot, waiting until one is free.
+     * */
+    public void acquire() throws InterruptedException {
+        slots.acquire();
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * @return listener of an asynchronous publication holding a slot, it releases the slot and completes the future
+     * when the publication completes
+     * */
+    public IMqttActionListener completing(CompletableFuture<Void> future) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                release();
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable exception) {
+                release();
+                future.completeExceptionally(exception);
+            }
+        };
+    }
+
+    /**
+     * @return publications holding a slot
+     * */
+    public int getPending() {
+        return capacity - slots.availablePermits();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
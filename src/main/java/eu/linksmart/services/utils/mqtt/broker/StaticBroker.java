@@ -6,6 +6,7 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 
 import java.net.MalformedURLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by José Ángel Carvajal on 23.10.2015 a researcher of Fraunhofer FIT.
@@ -89,6 +90,12 @@ public class StaticBroker implements Broker{
         brokerService.publish(topic,payload,qos,retained);
     }
 
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+
+        return brokerService.publishAsync(topic,payload,qos,retained);
+    }
+
     @Override
     public void publish(String topic, byte[] payload) throws Exception {
 
@@ -119,7 +126,7 @@ public class StaticBroker implements Broker{
 
     @Override
     public boolean hasListeners() {
-        return brokerService.listener.hasObservers();
+        return brokerService.hasListeners();
     }
 
     @Override
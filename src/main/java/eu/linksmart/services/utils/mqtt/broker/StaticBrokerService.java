@@ -113,7 +113,11 @@ public class StaticBrokerService extends BrokerService implements Broker {
 
                 if(clients.size() == 1){
                     remove(this);
-                    _destroy();
+                    try {
+                        _destroy();
+                    } finally {
+                        closeListeners();
+                    }
                 }
                 clients.remove(clientID);
 
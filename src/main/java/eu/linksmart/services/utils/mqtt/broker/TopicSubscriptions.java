@@ -0,0 +1,237 @@
+package eu.linksmart.services.utils.mqtt.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Topic filters subscribed by a BrokerService, with their QoS.
+ * The registrations arriving while a SUBSCRIBE is on its way (or during the linger) are grouped and sent together in
+ * the next one; a filter already subscribed or on its way with the same or a higher QoS is not sent again.
+ * SUBSCRIBE and UNSUBSCRIBE are sent one at a time, so a filter unsubscribed and registered again ends subscribed.
+ * The UNSUBSCRIBE of a disconnected connection is kept until retryUnsubscribes() is called after reconnecting.
+ */
+public class TopicSubscriptions {
+
+    /**
+     * Sends the packets to the broker.
+     * */
+    public interface Subscriber {
+        /**
+         * Subscribes the topic filters, returns when they are acknowledged.
+         * */
+        void subscribe(List<String> filters, List<Integer> qos) throws Exception;
+
+        /**
+         * @return false if the connection of the filter is not connected and nothing was sent
+         * */
+        boolean unsubscribe(String filter) throws Exception;
+    }
+
+    private final Subscriber subscriber;
+    private final LongSupplier linger;
+    // held while a SUBSCRIBE or UNSUBSCRIBE is on its way, taken before this
+    private final Object sendLock = new Object();
+
+    // acknowledged filters with their QoS (guarded by this)
+    private final LinkedHashMap<String, Integer> subscribed = new LinkedHashMap<>();
+    // batch of each filter waiting for or on its way in a SUBSCRIBE (guarded by this)
+    private final Map<String, Batch> inflight = new HashMap<>();
+    // filters waiting to be subscribed together, null if none (guarded by this)
+    private Batch pending = null;
+    // filters to unsubscribe once their connection is back (guarded by this)
+    private final LinkedHashSet<String> pendingUnsubscribes = new LinkedHashSet<>();
+
+    /**
+     * @param subscriber sends the packets
+     * @param linger ms waited before sending a SUBSCRIBE, to group more filters in it
+     * */
+    public TopicSubscriptions(Subscriber subscriber, LongSupplier linger) {
+        this.subscriber = subscriber;
+        this.linger = linger;
+    }
+
+    /**
+     * Subscribes the topic filter unless it is already subscribed, or on its way, with the same or a higher QoS.
+     * Returns when the SUBSCRIBE containing the filter is acknowledged.
+     * */
+    public void subscribe(String filter, int qos) throws Exception {
+        Batch batch;
+        boolean leader = false;
+        synchronized (this) {
+            // registered again, the broker keeps it subscribed
+            pendingUnsubscribes.remove(filter);
+            Integer acknowledged = subscribed.get(filter);
+            if (acknowledged != null && acknowledged >= qos)
+                return;
+
+            batch = inflight.get(filter);
+            if (batch == null || batch.filters.getOrDefault(filter, -1) < qos) {
+                if (pending == null) {
+                    pending = new Batch();
+                    leader = true;
+                }
+                batch = pending;
+                batch.filters.merge(filter, qos, Math::max);
+                inflight.put(filter, batch);
+            }
+        }
+        if (leader)
+            flush(batch);
+
+        try {
+            batch.done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private void flush(Batch batch) {
+        // lingers without the lock, so the packets of the other batches are not held back meanwhile
+        long ms = linger.getAsLong();
+        if (ms > 0)
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        // waits for the packet on its way, meanwhile the batch keeps growing
+        synchronized (sendLock) {
+            List<String> filters;
+            List<Integer> qos;
+            synchronized (this) {
+                // the next registrations form a new batch
+                if (pending == batch)
+                    pending = null;
+                filters = new ArrayList<>(batch.filters.keySet());
+                qos = new ArrayList<>(batch.filters.values());
+            }
+            try {
+                if (!filters.isEmpty())
+                    subscriber.subscribe(filters, qos);
+                synchronized (this) {
+                    for (int i = 0; i < filters.size(); i++)
+                        subscribed.merge(filters.get(i), qos.get(i), Math::max);
+                }
+                batch.done.complete(null);
+            } catch (Exception e) {
+                batch.done.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    for (String filter : filters)
+                        inflight.remove(filter, batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the topic filter and sends its UNSUBSCRIBE if it is unused, checked after the packets on their way. If
+     * the connection is lost (or the UNSUBSCRIBE fails) it is sent again by retryUnsubscribes().
+     *
+     * @return true if the filter was subscribed and is unsubscribed now or once its connection is back
+     * */
+    public boolean unsubscribe(String filter, BooleanSupplier unused) throws Exception {
+        synchronized (sendLock) {
+            synchronized (this) {
+                if (!unused.getAsBoolean())
+                    return false;
+                // not sent yet, there is no need to subscribe it anymore
+                if (pending != null && pending.filters.remove(filter) != null)
+                    inflight.remove(filter, pending);
+                if (subscribed.remove(filter) == null)
+                    return false;
+            }
+            boolean sent = false;
+            try {
+                sent = subscriber.unsubscribe(filter);
+            } finally {
+                if (!sent)
+                    synchronized (this) {
+                        pendingUnsubscribes.add(filter);
+                    }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends the UNSUBSCRIBE not sent while the connection was lost, the ones still not sent are kept.
+     * */
+    public void retryUnsubscribes() throws Exception {
+        synchronized (sendLock) {
+            List<String> filters;
+            synchronized (this) {
+                filters = new ArrayList<>(pendingUnsubscribes);
+            }
+            for (String filter : filters) {
+                synchronized (this) {
+                    // registered again meanwhile
+                    if (!pendingUnsubscribes.contains(filter))
+                        continue;
+                }
+                if (subscriber.unsubscribe(filter))
+                    synchronized (this) {
+                        pendingUnsubscribes.remove(filter);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Subscribes again the acknowledged topic filters accepted by the predicate, e.g. the ones of a lost connection.
+     * */
+    public void resubscribe(Predicate<String> filter) throws Exception {
+        synchronized (sendLock) {
+            List<String> filters = new ArrayList<>();
+            List<Integer> qos = new ArrayList<>();
+            synchronized (this) {
+                subscribed.forEach((f, q) -> {
+                    if (filter.test(f)) {
+                        filters.add(f);
+                        qos.add(q);
+                    }
+                });
+            }
+            if (!filters.isEmpty())
+                subscriber.subscribe(filters, qos);
+        }
+    }
+
+    /**
+     * @return the acknowledged topic filters in subscription order
+     * */
+    public synchronized List<String> getFilters() {
+        return new ArrayList<>(subscribed.keySet());
+    }
+
+    /**
+     * @return the QoS the topic filter is subscribed with, null if it is not subscribed
+     * */
+    public synchronized Integer getQoS(String filter) {
+        return subscribed.get(filter);
+    }
+
+    /**
+     * @return the topic filters waiting for their connection to be unsubscribed
+     * */
+    public synchronized List<String> getPendingUnsubscribes() {
+        return new ArrayList<>(pendingUnsubscribes);
+    }
+
+    /**
+     * Topic filters (with their QoS) to subscribe in the same SUBSCRIBE.
+     * */
+    private static final class Batch {
+        private final Map<String, Integer> filters = new LinkedHashMap<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+}
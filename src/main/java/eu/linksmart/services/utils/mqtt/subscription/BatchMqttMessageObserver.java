@@ -0,0 +1,28 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Observer receiving the messages of a subscription in batches. The size of the batches is bounded by the delivery
+ * properties messaging_client_mqtt_delivery_batch_size and messaging_client_mqtt_delivery_batch_linger (see DeliveryProfile).
+ * The deliverables always pass the topic filter of the subscription, also for single messages (batch size 1), so the
+ * concrete topic of a message has to be taken from MqttMessage.getTopic().
+ */
+public interface BatchMqttMessageObserver extends MqttMessageObserver {
+    /**
+     * Called by the callers not aware of batches, with the concrete topic of the message.
+     * */
+    @Override
+    default void update(String topic, MqttMessage message){
+        update(topic, Collections.singletonList(message));
+    }
+
+    /**
+     * @param topic the topic filter of the subscription, each message carries its concrete topic
+     * @param batch messages in arrival order, the list is read-only
+     * */
+    void update(String topic, List<MqttMessage> batch);
+}
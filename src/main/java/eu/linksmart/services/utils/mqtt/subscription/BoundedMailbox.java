@@ -0,0 +1,251 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mailbox limited in number of messages and/or payload bytes. What happens when a message does not fit is decided by
+ * the OverflowPolicy; every dropped message is counted, so the losses of a slow subscription can be monitored.
+ */
+public class BoundedMailbox implements Mailbox {
+
+    public enum OverflowPolicy {
+        /** the producer (ingest thread) waits until the message fits */
+        BLOCK,
+        /** the arriving message is dropped */
+        DROP_NEWEST,
+        /** the oldest messages are dropped until the arriving one fits */
+        DROP_OLDEST,
+        /** the messages waiting longer than the TTL are dropped; if it still does not fit, the arriving message is dropped */
+        TTL
+    }
+
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final long capacityBytes;
+    private final OverflowPolicy policy;
+    private final long ttlNanos;
+    private long bytes = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    private final LongAdder droppedNewest = new LongAdder(), droppedOldest = new LongAdder(), expired = new LongAdder();
+
+    /**
+     * @param capacity max. number of messages, 0 or less means no limit
+     * @param capacityBytes max. sum of the payload sizes, 0 or less means no limit. A single message bigger than the limit is accepted in an empty mailbox.
+     * @param policy applied when a message does not fit
+     * @param ttl max. time in milliseconds a message waits to be delivered, only used by the TTL policy
+     * */
+    public BoundedMailbox(int capacity, long capacityBytes, OverflowPolicy policy, long ttl) {
+        this.capacity = capacity;
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    @Override
+    public boolean offer(MqttMessage message) {
+        lock.lock();
+        try {
+            return enqueue(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(MqttMessage message) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(message))
+                notFull.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MqttMessage poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MqttMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            MqttMessage message;
+            while ((message = dequeue()) == null)
+                notEmpty.await();
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            MqttMessage message;
+            while ((message = dequeue()) == null) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super MqttMessage> target, int max) {
+        lock.lock();
+        try {
+            MqttMessage message;
+            int i = 0;
+            while (i < max && (message = dequeue()) != null) {
+                target.add(message);
+                i++;
+            }
+            return i;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getDropped() {
+        return droppedNewest.sum() + droppedOldest.sum() + expired.sum();
+    }
+
+    /**
+     * Adds the message if it fits, applying the overflow policy otherwise. Must be called holding the lock.
+     *
+     * @return false only if the message was not added and the policy is BLOCK
+     * */
+    private boolean enqueue(MqttMessage message) {
+        int length = length(message);
+        if (policy == OverflowPolicy.TTL)
+            expire(System.nanoTime());
+
+        if (!fits(length))
+            switch (policy) {
+                case BLOCK:
+                    return false;
+                case DROP_OLDEST:
+                    while (!fits(length)) {
+                        remove();
+                        droppedOldest.increment();
+                    }
+                    break;
+                case DROP_NEWEST:
+                case TTL:
+                default:
+                    droppedNewest.increment();
+                    return true;
+            }
+
+        queue.addLast(new Entry(message, policy == OverflowPolicy.TTL ? System.nanoTime() : 0L, length));
+        bytes += length;
+        notEmpty.signal();
+        return true;
+    }
+
+    private MqttMessage dequeue() {
+        if (policy == OverflowPolicy.TTL)
+            expire(System.nanoTime());
+
+        return queue.isEmpty() ? null : remove();
+    }
+
+    private MqttMessage remove() {
+        Entry entry = queue.removeFirst();
+        bytes -= entry.length;
+        notFull.signal();
+        return entry.message;
+    }
+
+    private void expire(long now) {
+        while (!queue.isEmpty() && now - queue.peekFirst().arrival > ttlNanos) {
+            remove();
+            expired.increment();
+        }
+    }
+
+    private boolean fits(int length) {
+        return queue.isEmpty() || ((capacity <= 0 || queue.size() < capacity) && (capacityBytes <= 0 || bytes + length <= capacityBytes));
+    }
+
+    private static int length(MqttMessage message) {
+        return message.getPayload() != null ? message.getPayload().length : 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    private static final class Entry {
+        private final MqttMessage message;
+        private final long arrival;
+        private final int length;
+
+        private Entry(MqttMessage message, long arrival, int length) {
+            this.message = message;
+            this.arrival = arrival;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executor;
+
+/**
+ * POOLED deliverables run on the shared DeliveryPool, THREAD_PER_TOPIC deliverables on a new platform thread each,
+ * and VIRTUAL deliverables on a new virtual thread each when the JVM supports them (Java 21+), otherwise on a platform thread.
+ */
+public class DefaultDeliveryExecutorFactory implements DeliveryExecutorFactory {
+    private static final Logger LOG = LogManager.getLogger(DefaultDeliveryExecutorFactory.class);
+
+    private volatile Executor virtualThreads = null;
+    private volatile boolean warned = false;
+
+    @Override
+    public Executor getExecutor(String topic, DeliveryMode mode) {
+        switch (mode) {
+            case POOLED:
+                return DeliveryPool.getSharedExecutor();
+            case VIRTUAL:
+                if (virtualThreads == null && VirtualThreads.isSupported())
+                    virtualThreads = VirtualThreads.newThreadPerTaskExecutor("mqtt-delivery-virtual");
+                if (virtualThreads != null)
+                    return virtualThreads;
+                if (!warned) {
+                    warned = true;
+                    LOG.warn("Virtual threads are not supported by this JVM (Java 21+ required), " + DeliveryMode.THREAD_PER_TOPIC + " is used instead");
+                }
+                return platformThreads(topic);
+            case THREAD_PER_TOPIC:
+            default:
+                return platformThreads(topic);
+        }
+    }
+
+    /**
+     * @return an executor starting each task in a new platform thread named after the topic
+     * */
+    private static Executor platformThreads(String topic) {
+        return task -> new Thread(task, "mqtt-delivery-" + topic).start();
+    }
+}
@@ -0,0 +1,17 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Provides the executors where the TopicMessageDeliverable(s) run. The factory used by default can be replaced with
+ * DeliveryPool.setExecutorFactory, or given to a ForwardingListener.
+ */
+public interface DeliveryExecutorFactory {
+    /**
+     * @param topic topic filter of the deliverable
+     * @param mode delivery mode of the deliverable
+     * @return for POOLED, an executor running the serial turns of the deliverable. For the other modes, an executor
+     * running the whole delivery loop of the deliverable as one task, i.e. one (platform or virtual) thread per topic.
+     * */
+    Executor getExecutor(String topic, DeliveryMode mode);
+}
@@ -0,0 +1,26 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+
+/**
+ * Defines how the TopicMessageDeliverable(s) execute the delivery of the messages to their observers.
+ */
+public enum DeliveryMode {
+    /** each TopicMessageDeliverable owns a dedicated thread (legacy behaviour) */
+    THREAD_PER_TOPIC,
+    /** all TopicMessageDeliverable(s) share a bounded pool, each one runs as a serial mailbox on it */
+    POOLED,
+    /** each TopicMessageDeliverable owns a virtual thread (Java 21+, otherwise THREAD_PER_TOPIC is used) */
+    VIRTUAL,
+    /** the messages are delivered by the shard threads of a ShardedDispatcher, the shard is chosen by the concrete topic */
+    SHARDED;
+
+    public static DeliveryMode getDefault(){
+        Configurator conf = Configurator.getDefaultConfig();
+        if(conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_MODE))
+            return DeliveryMode.valueOf(conf.getString(BrokerServiceConst.DELIVERY_MODE).trim().toUpperCase());
+
+        return POOLED;
+    }
+}
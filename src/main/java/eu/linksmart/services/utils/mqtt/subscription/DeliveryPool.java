@@ -0,0 +1,114 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool shared by all TopicMessageDeliverable(s) running in DeliveryMode.POOLED.
+ * The number of threads is set by messaging_client_mqtt_delivery_pool_size (0 or less means one per core).
+ * The task queue holds at most one task per deliverable, because a deliverable schedules itself only when it is idle.
+ * The SHARDED deliverables of all the listeners share one ShardedDispatcher as well.
+ */
+public final class DeliveryPool {
+    private static volatile ExecutorService sharedExecutor = null;
+    private static volatile ShardedDispatcher sharedDispatcher = null;
+    private static volatile DeliveryExecutorFactory executorFactory = new DefaultDeliveryExecutorFactory();
+
+    private DeliveryPool(){
+        // static access only
+    }
+
+    public static ExecutorService getSharedExecutor(){
+        if(sharedExecutor == null)
+            synchronized (DeliveryPool.class) {
+                if (sharedExecutor == null)
+                    sharedExecutor = newExecutor(getConfiguredPoolSize(), "mqtt-delivery");
+            }
+
+        return sharedExecutor;
+    }
+
+    /**
+     * @return the dispatcher of the SHARDED deliverables of all the listeners, a new one if it was stopped
+     * */
+    public static ShardedDispatcher getSharedDispatcher(){
+        ShardedDispatcher dispatcher = sharedDispatcher;
+        if(dispatcher == null || !dispatcher.isActive())
+            synchronized (DeliveryPool.class) {
+                if (sharedDispatcher == null || !sharedDispatcher.isActive())
+                    sharedDispatcher = new ShardedDispatcher(getConfiguredShards());
+                dispatcher = sharedDispatcher;
+            }
+
+        return dispatcher;
+    }
+
+    /**
+     * @return the factory providing the executors of the deliverables created without an explicit one
+     * */
+    public static DeliveryExecutorFactory getExecutorFactory(){
+        return executorFactory;
+    }
+
+    public static void setExecutorFactory(DeliveryExecutorFactory factory){
+        executorFactory = factory != null ? factory : new DefaultDeliveryExecutorFactory();
+    }
+
+    public static ExecutorService newExecutor(int threads, String namePrefix){
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    }
+
+    static int getConfiguredPoolSize(){
+        Configurator conf = Configurator.getDefaultConfig();
+        int size = 0;
+        if(conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_POOL_SIZE))
+            size = conf.getInt(BrokerServiceConst.DELIVERY_POOL_SIZE);
+
+        return size > 0 ? size : Runtime.getRuntime().availableProcessors();
+    }
+
+    static int getConfiguredThroughput(){
+        Configurator conf = Configurator.getDefaultConfig();
+        int throughput = 0;
+        if(conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_POOL_THROUGHPUT))
+            throughput = conf.getInt(BrokerServiceConst.DELIVERY_POOL_THROUGHPUT);
+
+        return throughput > 0 ? throughput : 64;
+    }
+
+    /**
+     * @return no. of shard threads of a ShardedDispatcher, 0 means one per core
+     * */
+    static int getConfiguredShards(){
+        Configurator conf = Configurator.getDefaultConfig();
+        if(conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_SHARDS))
+            return conf.getInt(BrokerServiceConst.DELIVERY_SHARDS);
+
+        return 0;
+    }
+
+    /**
+     * @return max. milliseconds to wait for the deliverables to deliver their messages when a listener is closed, and
+     * for the enqueued publications to be sent when a BrokerService is destroyed
+     * */
+    public static long getConfiguredDrainTimeout(){
+        Configurator conf = Configurator.getDefaultConfig();
+        if(conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_DRAIN_TIMEOUT))
+            return conf.getLong(BrokerServiceConst.DELIVERY_DRAIN_TIMEOUT);
+
+        return 1000;
+    }
+}
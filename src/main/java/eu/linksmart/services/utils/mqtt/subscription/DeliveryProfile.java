@@ -0,0 +1,243 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+import eu.linksmart.services.utils.mqtt.types.TopicMatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Delivery settings of the subscriptions (TopicMessageDeliverable) matching a set of topic patterns.
+ *
+ * The profiles are defined in the configuration like the broker aliases: messaging_client_mqtt_delivery_profiles lists
+ * the profile names, messaging_client_mqtt_delivery_topics_[profile] the topic patterns of each profile, and any
+ * delivery property can be overwritten per profile by adding the name of the profile as postfix.
+ * E.g. messaging_client_mqtt_delivery_mailbox_[profile] = RING.
+ * The subscriptions not matching any profile use the default profile, i.e. the properties without postfix.
+ */
+public class DeliveryProfile {
+    public static final String DEFAULT_PROFILE = "default";
+
+    private static volatile List<DeliveryProfile> profiles = null;
+    private static volatile DeliveryProfile defaultProfile = null;
+    private static final Configurator conf = Configurator.getDefaultConfig();
+
+    protected final String name;
+    protected final List<TopicMatcher> topics = new ArrayList<>();
+    // if null the mode of the ForwardingListener is used
+    protected DeliveryMode mode = null;
+    protected Mailbox.Type mailbox = Mailbox.Type.QUEUE;
+    protected int ringSize = 1024;
+    protected RingBufferMailbox.WaitStrategy waitStrategy = RingBufferMailbox.WaitStrategy.BLOCKING;
+    // limits of the QUEUE mailbox, 0 means unbounded
+    protected int capacity = 0;
+    protected long capacityBytes = 0;
+    protected BoundedMailbox.OverflowPolicy overflowPolicy = BoundedMailbox.OverflowPolicy.BLOCK;
+    protected long ttl = 0;
+    // max. messages per delivery to a BatchMqttMessageObserver and max. ms to wait filling a batch
+    protected int batchSize = 1;
+    protected long batchLinger = 0;
+
+    public DeliveryProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param topicFilter topic filter of a subscription
+     * @return the first configured profile with a topic pattern matching the filter, otherwise the default profile
+     * */
+    public static DeliveryProfile forTopic(String topicFilter) {
+        for (DeliveryProfile profile : getProfiles())
+            for (TopicMatcher pattern : profile.topics)
+                if (pattern.getFilter().equals(topicFilter) || pattern.matches(topicFilter))
+                    return profile;
+
+        return getDefault();
+    }
+
+    public static DeliveryProfile getDefault() {
+        if (defaultProfile == null)
+            defaultProfile = load(DEFAULT_PROFILE, "");
+
+        return defaultProfile;
+    }
+
+    public static synchronized List<DeliveryProfile> getProfiles() {
+        if (profiles == null) {
+            List<DeliveryProfile> aux = new ArrayList<>();
+            if (conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_PROFILES))
+                for (Object name : conf.getList(BrokerServiceConst.DELIVERY_PROFILES))
+                    if (!"".equals(name.toString().trim()))
+                        aux.add(load(name.toString().trim(), "_" + name.toString().trim()));
+
+            profiles = Collections.unmodifiableList(aux);
+        }
+        return profiles;
+    }
+
+    /**
+     * Discards the loaded profiles, the next subscriptions load them again from the configuration.
+     * */
+    public static synchronized void reload() {
+        profiles = null;
+        defaultProfile = null;
+    }
+
+    protected static DeliveryProfile load(String name, String postFix) {
+        DeliveryProfile profile = new DeliveryProfile(name);
+
+        if (conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_PROFILE_TOPICS + postFix))
+            for (Object topic : conf.getList(BrokerServiceConst.DELIVERY_PROFILE_TOPICS + postFix))
+                if (!"".equals(topic.toString().trim()))
+                    profile.topics.add(new TopicMatcher(topic.toString().trim()));
+
+        // the mode is only overwritten by the profiles, the default mode is the one of the listener
+        if (!"".equals(postFix) && conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_MODE + postFix))
+            profile.mode = DeliveryMode.valueOf(conf.getString(BrokerServiceConst.DELIVERY_MODE + postFix).trim().toUpperCase());
+
+        profile.mailbox = Mailbox.Type.valueOf(getString(BrokerServiceConst.DELIVERY_MAILBOX, postFix, profile.mailbox.toString()).trim().toUpperCase());
+        profile.ringSize = getInt(BrokerServiceConst.DELIVERY_RING_SIZE, postFix, profile.ringSize);
+        profile.waitStrategy = RingBufferMailbox.WaitStrategy.valueOf(getString(BrokerServiceConst.DELIVERY_WAIT_STRATEGY, postFix, profile.waitStrategy.toString()).trim().toUpperCase());
+        profile.capacity = getInt(BrokerServiceConst.DELIVERY_CAPACITY, postFix, profile.capacity);
+        profile.capacityBytes = getLong(BrokerServiceConst.DELIVERY_CAPACITY_BYTES, postFix, profile.capacityBytes);
+        profile.overflowPolicy = BoundedMailbox.OverflowPolicy.valueOf(getString(BrokerServiceConst.DELIVERY_OVERFLOW_POLICY, postFix, profile.overflowPolicy.toString()).trim().toUpperCase());
+        profile.ttl = getLong(BrokerServiceConst.DELIVERY_TTL, postFix, profile.ttl);
+        profile.batchSize = getInt(BrokerServiceConst.DELIVERY_BATCH_SIZE, postFix, profile.batchSize);
+        profile.batchLinger = getLong(BrokerServiceConst.DELIVERY_BATCH_LINGER, postFix, profile.batchLinger);
+
+        return profile;
+    }
+
+    /**
+     * @return a new mailbox as defined by the profile. A RING mailbox is always bounded by its size and blocks the
+     * producers when full; the capacity limits and overflow policy apply to the QUEUE mailbox.
+     * */
+    public Mailbox createMailbox() {
+        if (mailbox == Mailbox.Type.RING)
+            return new RingBufferMailbox(ringSize, waitStrategy);
+
+        if (isBounded())
+            return new BoundedMailbox(capacity, capacityBytes, overflowPolicy, ttl);
+
+        return new QueueMailbox();
+    }
+
+    public boolean isBounded() {
+        return capacity > 0 || capacityBytes > 0 || (overflowPolicy == BoundedMailbox.OverflowPolicy.TTL && ttl > 0);
+    }
+
+    static private String getString(String key, String postFix, String Default) {
+        if (conf.containsKeyAnywhere(key + postFix))
+            return conf.getString(key + postFix);
+        if (conf.containsKeyAnywhere(key))
+            return conf.getString(key);
+
+        return Default;
+    }
+
+    static private int getInt(String key, String postFix, int Default) {
+        if (conf.containsKeyAnywhere(key + postFix))
+            return conf.getInt(key + postFix);
+        if (conf.containsKeyAnywhere(key))
+            return conf.getInt(key);
+        return Default;
+    }
+
+    static private long getLong(String key, String postFix, long Default) {
+        if (conf.containsKeyAnywhere(key + postFix))
+            return conf.getLong(key + postFix);
+        if (conf.containsKeyAnywhere(key))
+            return conf.getLong(key);
+        return Default;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<TopicMatcher> getTopics() {
+        return topics;
+    }
+
+    public DeliveryMode getMode() {
+        return mode;
+    }
+
+    public void setMode(DeliveryMode mode) {
+        this.mode = mode;
+    }
+
+    public Mailbox.Type getMailbox() {
+        return mailbox;
+    }
+
+    public void setMailbox(Mailbox.Type mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public RingBufferMailbox.WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(RingBufferMailbox.WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public void setCapacityBytes(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public BoundedMailbox.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(BoundedMailbox.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchLinger() {
+        return batchLinger;
+    }
+
+    public void setBatchLinger(long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+}
@@ -0,0 +1,272 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the 64-bit fingerprints (see fingerprint(String, byte[])) of the messages seen during the last window to
+ * detect duplicates, e.g. the QoS 1 redeliveries replayed after a reconnection.
+ * The window is split in time buckets: each bucket holds the fingerprints seen during its period and the oldest is
+ * discarded when a new period starts. The memory is bounded by maxEntries; when the current bucket is full a new one
+ * is started earlier, therefore under high load the effective window is shorter than the configured one.
+ * Note that two messages with the same topic and payload inside the window are duplicates, even if both were published.
+ * The same structure detects the echoes of our own messages: they are remembered when published (remember) and the
+ * arrived messages are only checked (contains).
+ * The checks are lock-free: the fingerprints are added with CAS and a bucket whose period is outside of the window is
+ * ignored until it is reused. Only starting a new bucket takes a lock.
+ */
+public class DuplicateFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+    private final FingerprintSet[] buckets;
+    private final long bucketNanos;
+    private final int bucketEntries;
+    // index in buckets of the current one, and the number of its period; only changed holding the lock of the filter
+    private volatile int head = 0;
+    private volatile long period;
+    private final LongAdder checked = new LongAdder(), suppressed = new LongAdder();
+
+    /**
+     * @param window time in ms a message is remembered
+     * @param buckets no. of periods in which the window is split, more buckets discard the old fingerprints more precisely
+     * @param maxEntries max. no. of fingerprints remembered
+     * */
+    public DuplicateFilter(long window, int buckets, int maxEntries) {
+        if (window <= 0 || buckets <= 0 || maxEntries < buckets)
+            throw new IllegalArgumentException("The window and the buckets must be positive and max. entries at least one per bucket");
+
+        this.buckets = new FingerprintSet[buckets];
+        bucketEntries = maxEntries / buckets;
+        bucketNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(window) / buckets);
+        period = System.nanoTime() / bucketNanos;
+        for (int i = 0; i < buckets; i++)
+            this.buckets[i] = new FingerprintSet(bucketEntries, period);
+    }
+
+    /**
+     * @return the filter configured by messaging_client_mqtt_dedup_window, _buckets and _max_entries; null if disabled
+     * */
+    public static DuplicateFilter fromConfiguration() {
+        Configurator conf = Configurator.getDefaultConfig();
+        long window = conf.containsKeyAnywhere(BrokerServiceConst.DEDUP_WINDOW) ? conf.getLong(BrokerServiceConst.DEDUP_WINDOW) : 0;
+        if (window <= 0)
+            return null;
+
+        int buckets = conf.containsKeyAnywhere(BrokerServiceConst.DEDUP_BUCKETS) ? conf.getInt(BrokerServiceConst.DEDUP_BUCKETS) : 4;
+        int maxEntries = conf.containsKeyAnywhere(BrokerServiceConst.DEDUP_MAX_ENTRIES) ? conf.getInt(BrokerServiceConst.DEDUP_MAX_ENTRIES) : 65536;
+        return new DuplicateFilter(window, buckets, maxEntries);
+    }
+
+    /**
+     * @return the filter of our own published messages configured by messaging_client_mqtt_autoblacklisting_window and _max_entries
+     * */
+    public static DuplicateFilter echoesFromConfiguration() {
+        Configurator conf = Configurator.getDefaultConfig();
+        long window = conf.containsKeyAnywhere(BrokerServiceConst.AUTOBLACKLISTING_WINDOW) ? conf.getLong(BrokerServiceConst.AUTOBLACKLISTING_WINDOW) : 5000;
+        int maxEntries = conf.containsKeyAnywhere(BrokerServiceConst.AUTOBLACKLISTING_MAX_ENTRIES) ? conf.getInt(BrokerServiceConst.AUTOBLACKLISTING_MAX_ENTRIES) : 65536;
+        return new DuplicateFilter(Math.max(window, 1), 4, Math.max(maxEntries, 4));
+    }
+
+    /**
+     * @return true if the message was already seen inside the window, otherwise it is remembered
+     * */
+    public boolean isDuplicate(String topic, byte[] payload) {
+        return isDuplicate(fingerprint(topic, payload));
+    }
+
+    public boolean isDuplicate(long fingerprint) {
+        checked.increment();
+        if (find(fingerprint) || !current().add(fingerprint)) {
+            suppressed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the message was seen inside the window (counted as suppressed), the message is not remembered
+     * */
+    public boolean contains(String topic, byte[] payload) {
+        return contains(fingerprint(topic, payload));
+    }
+
+    public boolean contains(long fingerprint) {
+        checked.increment();
+        if (find(fingerprint)) {
+            suppressed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers the message for the window without checking it, e.g. a message we publish whose echo must be detected.
+     * */
+    public void remember(String topic, byte[] payload) {
+        remember(fingerprint(topic, payload));
+    }
+
+    public void remember(long fingerprint) {
+        current().add(fingerprint);
+    }
+
+    /**
+     * Forgets all the fingerprints, the metrics are kept.
+     * */
+    public synchronized void clear() {
+        for (FingerprintSet bucket : buckets)
+            bucket.clear();
+    }
+
+    /**
+     * @return no. of messages checked (by isDuplicate or contains)
+     * */
+    public long getChecked() {
+        return checked.sum();
+    }
+
+    /**
+     * @return no. of messages found duplicated (by isDuplicate or contains)
+     * */
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return fraction (0 to 1) of the checked messages found duplicated
+     * */
+    public double getSuppressionRate() {
+        long total = checked.sum();
+        return total > 0 ? (double) suppressed.sum() / total : 0.0;
+    }
+
+    // looks in the buckets of the window without changing them
+    private boolean find(long fingerprint) {
+        long oldest = Math.max(period, System.nanoTime() / bucketNanos) - buckets.length;
+        for (FingerprintSet bucket : buckets)
+            if (bucket.period > oldest && bucket.contains(fingerprint))
+                return true;
+        return false;
+    }
+
+    // the bucket where the new fingerprints go, a new one is started when the period passed or the current is full
+    private FingerprintSet current() {
+        long now = System.nanoTime() / bucketNanos;
+        FingerprintSet bucket = buckets[head];
+        if (now > period || bucket.size.get() >= bucketEntries)
+            bucket = rotate(now);
+        return bucket;
+    }
+
+    private synchronized FingerprintSet rotate(long now) {
+        FingerprintSet bucket = buckets[head];
+        if (now > period) {
+            for (long i = Math.min(now - period, buckets.length); i > 0; i--)
+                bucket = next();
+            // the period only moves forward, also when the current bucket was started earlier because it was full
+            period = Math.max(period, now);
+            bucket.period = period;
+        } else if (bucket.size.get() >= bucketEntries)
+            bucket = next();
+        return bucket;
+    }
+
+    private FingerprintSet next() {
+        int i = (head + 1) % buckets.length;
+        FingerprintSet bucket = buckets[i];
+        // outside of any window while it is cleared
+        bucket.period = Long.MIN_VALUE;
+        bucket.clear();
+        bucket.period = ++period;
+        head = i;
+        return bucket;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the topic and payload with a final avalanche step, never 0.
+     * */
+    public static long fingerprint(String topic, byte[] payload) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < topic.length(); i++)
+            hash = (hash ^ topic.charAt(i)) * FNV_PRIME;
+        // separates the topic from the payload, no char of the topic can be a 0x10000
+        hash = (hash ^ 0x10000) * FNV_PRIME;
+        if (payload != null)
+            for (byte b : payload)
+                hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Open addressing set of fingerprints filled with CAS, 0 marks an empty slot. The fingerprints are only removed all
+     * together by clear().
+     * */
+    private static final class FingerprintSet {
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final AtomicInteger size = new AtomicInteger();
+        // period whose fingerprints the set holds
+        private volatile long period;
+
+        private FingerprintSet(int entries, long period) {
+            // at most half full
+            int capacity = Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+            slots = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            this.period = period;
+        }
+
+        private boolean contains(long fingerprint) {
+            int i = (int) fingerprint & mask;
+            for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+                long slot = slots.get(i);
+                if (slot == fingerprint)
+                    return true;
+                if (slot == 0)
+                    return false;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the fingerprint was already in the set
+         * */
+        private boolean add(long fingerprint) {
+            int i = (int) fingerprint & mask;
+            for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+                long slot = slots.get(i);
+                if (slot == 0) {
+                    if (slots.compareAndSet(i, 0, fingerprint)) {
+                        size.incrementAndGet();
+                        return true;
+                    }
+                    // taken meanwhile, maybe by the same fingerprint
+                    slot = slots.get(i);
+                }
+                if (slot == fingerprint)
+                    return false;
+            }
+            // only if more fingerprints than entries were added concurrently, it is forgotten
+            return true;
+        }
+
+        private void clear() {
+            if (size.get() > 0) {
+                for (int i = 0; i <= mask; i++)
+                    slots.set(i, 0);
+                size.set(0);
+            }
+        }
+    }
+}
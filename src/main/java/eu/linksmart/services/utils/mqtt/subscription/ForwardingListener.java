@@ -17,6 +17,8 @@ import org.eclipse.paho.client.mqttv3.MqttCallback;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by José Ángel Carvajal on 06.08.2015 a researcher of Fraunhofer FIT.
@@ -26,14 +28,23 @@ public  class ForwardingListener implements MqttCallback {
     private Observer  connectionListener = null;
     private static Logger LOG = LogManager.getLogger(BrokerService.class);
 
-    private long sequence ;
+    private final AtomicLong sequence = new AtomicLong();
     private Map<Topic, TopicMessageDeliverable> observables;
-    private Map<String,TopicMessageDeliverable> compiledTopic = new Hashtable<>();
-
-    private final  Object muxMessageDelivererSet = new Object();
-    private Set<Topic> messageDelivererSet = new HashSet<>();
-    // set of topics where we publish
-    private Set<String> publishedTopics = new HashSet<>();
+    private static final TopicMessageDeliverable[] EMPTY_ROUTE = new TopicMessageDeliverable[0];
+    // immutable route (all the matching deliverables) of the concrete topics seen recently, bounded LRU
+    private final RouteCache compiledTopic = new RouteCache(RouteCache.getConfiguredCapacity());
+    // index of the subscribed topic filters, used to resolve the concrete topics not yet compiled
+    private final TopicTrie<TopicMessageDeliverable> subscriptions = new TopicTrie<>();
+    // changes each time the subscriptions change, to discard routes compiled concurrently with the change
+    private final AtomicLong routesVersion = new AtomicLong();
+    // messages we published recently, to drop their echoes
+    private volatile DuplicateFilter publishedMessages = DuplicateFilter.echoesFromConfiguration();
+    private final DeliveryMode deliveryMode;
+    private final DeliveryExecutorFactory executorFactory;
+    // the shared dispatcher while there are SHARDED deliverables, otherwise null
+    private volatile ShardedDispatcher dispatcher = null;
+    // drops the messages already arrived inside its window, null if disabled
+    private volatile DuplicateFilter duplicateFilter;
 
 
     //Start of code made for testing performance
@@ -44,8 +55,17 @@ public  class ForwardingListener implements MqttCallback {
     //End of code made for testing performance
 
     public ForwardingListener( Observer connectionListener, UUID originProtocol) {
+        this(connectionListener, originProtocol, DeliveryMode.getDefault());
+    }
+    public ForwardingListener( Observer connectionListener, UUID originProtocol, DeliveryMode deliveryMode) {
+        this(connectionListener, originProtocol, deliveryMode, DeliveryPool.getExecutorFactory());
+    }
+    public ForwardingListener( Observer connectionListener, UUID originProtocol, DeliveryMode deliveryMode, DeliveryExecutorFactory executorFactory) {
         this.originProtocol = originProtocol;
         this.connectionListener = connectionListener;
+        this.deliveryMode = deliveryMode;
+        this.executorFactory = executorFactory;
+        this.duplicateFilter = DuplicateFilter.fromConfiguration();
 
         /// Code for validation and test proposes
         if(VALIDATION_MODE = Configurator.getDefaultConfig().containsKeyAnywhere(Const.VALIDATION_FORWARDING)) {
@@ -60,28 +80,119 @@ public  class ForwardingListener implements MqttCallback {
     }
 
 
-    protected void initObserver(String listening, Observer mqttEventsListener){
+    protected synchronized void initObserver(String listening, Observer mqttEventsListener){
+        observables.forEach((t,deliverable)->{
+            removeRoute(t.getTopic(),deliverable);
+            deliverable.stop();
+        });
         observables = new Hashtable<>();
-        observables.put(new Topic(listening), new TopicMessageDeliverable(listening));
+        releaseDispatcherIfUnused();
+        TopicMessageDeliverable deliverable = newDeliverable(listening);
+        observables.put(new Topic(listening), deliverable);
+        addRoute(listening, deliverable);
     }
-    public void addObserver(String topic, Observer listener){
+    /**
+     * @return false if the listener was already registered in the topic
+     * */
+    public synchronized boolean addObserver(String topic, Observer listener){
         Topic t = new Topic(topic);
-        if(!observables.containsKey(t))
-            observables.put(t, new TopicMessageDeliverable(topic));
+        if(!observables.containsKey(t)) {
+            TopicMessageDeliverable deliverable = newDeliverable(topic);
+            observables.put(t, deliverable);
+            addRoute(topic, deliverable);
+        }
 
-        observables.get(t).addObserver(listener);
-        synchronized (muxMessageDelivererSet) {
-            messageDelivererSet = observables.keySet();
+        return observables.get(t).addObserver(listener);
+
+    }
+
+    /**
+     * Adds an observer processing the messages of the topic in parallel, keeping the order only per key (see KeyPartitionedObserver).
+     * The observer is removed as any other with removeObserver(topic, listener).
+     *
+     * @return false if the listener was already registered in the topic
+     * */
+    public synchronized boolean addObserver(String topic, Observer listener, KeyExtractor keyExtractor){
+        TopicMessageDeliverable deliverable = observables.get(new Topic(topic));
+        if(deliverable != null && deliverable.containsListener(listener)) {
+            // already registered, do not start the partitions of a wrapper that would be rejected
+            LOG.warn("the same observer was intent to be added in the same Message");
+            return false;
         }
+        return addObserver(topic, new KeyPartitionedObserver(listener, keyExtractor, topic));
+    }
+
+    private TopicMessageDeliverable newDeliverable(String topic){
+        TopicMessageDeliverable deliverable = new TopicMessageDeliverable(topic, deliveryMode, DeliveryProfile.forTopic(topic), executorFactory);
+        if(deliverable.isDispatched() && (dispatcher == null || !dispatcher.isActive()))
+            dispatcher = DeliveryPool.getSharedDispatcher();
+
+        return deliverable;
+    }
+
+    /**
+     * @return the dispatcher of the SHARDED subscriptions (e.g. to read its metrics), null if there are none
+     * */
+    public ShardedDispatcher getDispatcher(){
+        return dispatcher;
+    }
+
+    /**
+     * @return the filter of duplicated messages (e.g. to read its suppression rate), null if disabled
+     * */
+    public DuplicateFilter getDuplicateFilter(){
+        return duplicateFilter;
+    }
 
+    /**
+     * @param duplicateFilter drops the duplicated messages before they are queued, null disables the filtering
+     * */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter){
+        this.duplicateFilter = duplicateFilter;
     }
 
+    /**
+     * Remembers a message we publish, if it arrives back during messaging_client_mqtt_autoblacklisting_window ms and
+     * autoblacklisting is enabled, it is dropped. Other messages of the topic are delivered.
+     * */
+    public void addPublishedMessage(String topic, byte[] payload){
+        publishedMessages.remember(topic, payload);
+    }
+
+    /**
+     * Uses the published messages remembered by other listener, e.g. of another connection of the same client whose
+     * echoes can arrive through this one.
+     * */
+    public void sharePublishedMessages(ForwardingListener other){
+        publishedMessages = other.publishedMessages;
+    }
+
+    /**
+     * @deprecated the echoes are detected per message, see addPublishedMessage(String, byte[]). Does nothing.
+     * */
+    @Deprecated
     public void addPublishedTopic(String topic){
-       // if(messageDelivererSet.stream().anyMatch(t -> t.equals(topic)))
-            publishedTopics.add(topic);
     }
+
+    /**
+     * @deprecated the published messages are forgotten after messaging_client_mqtt_autoblacklisting_window ms. Does nothing.
+     * */
+    @Deprecated
     public void removePublishedTopic(String topic){
-        publishedTopics.remove(topic);
+    }
+
+    /**
+     * @return no. of arrived messages dropped as echoes of our own messages
+     * */
+    public long getSuppressedEchoes(){
+        return publishedMessages.getSuppressed();
+    }
+
+    /**
+     * @return no. of arrived messages checked by the autoblacklisting and not found to be echoes
+     * */
+    public long getPassedEchoChecks(){
+        return publishedMessages.getChecked() - publishedMessages.getSuppressed();
     }
 
     public boolean isAutoblacklisting() {
@@ -93,23 +204,97 @@ public  class ForwardingListener implements MqttCallback {
     }
 
     @SuppressWarnings("SuspiciousMethodCalls")
-    public boolean removeObserver(String topic, Observer listener){
+    public synchronized boolean removeObserver(String topic, Observer listener){
         if(observables.containsKey(topic) && observables.get(topic).containsListener(listener))
             observables.get(topic).deleteObserver(listener);
         else
             return false;
-        if(observables.get(topic).countObservers()==0)
-            observables.remove(topic);
-
-
-        synchronized (muxMessageDelivererSet) {
-            messageDelivererSet = observables.keySet();
+        if(observables.get(topic).countObservers()==0) {
+            // nobody else listens to the topic, reclaim the thread and the waiting messages
+            TopicMessageDeliverable deliverable = observables.remove(topic);
+            removeRoute(topic, deliverable);
+            deliverable.stop();
+            if(deliverable.isDispatched())
+                releaseDispatcherIfUnused();
         }
+
         return true;
     }
+
+    /**
+     * Forgets the shared dispatcher when no SHARDED deliverable is left, it is taken again with the next SHARDED
+     * subscription. The dispatcher is not stopped, other listeners use it.
+     * Only called by the (synchronized) registration methods.
+     * */
+    private void releaseDispatcherIfUnused(){
+        if(dispatcher == null)
+            return;
+        for (TopicMessageDeliverable deliverable : observables.values())
+            if (deliverable.isDispatched())
+                return;
+
+        dispatcher = null;
+    }
+
+    /**
+     * Indexes a new subscription. The compiled routes are discarded and compiled again from the index on arrival, so
+     * the cost does not depend on the number of topics seen. Only called by the (synchronized) registration methods.
+     * */
+    private void addRoute(String topicFilter, TopicMessageDeliverable deliverable){
+        subscriptions.put(topicFilter, deliverable);
+        routesVersion.incrementAndGet();
+        compiledTopic.clear();
+    }
+
+    /**
+     * Removes a subscription from the index and discards the compiled routes.
+     * Only called by the (synchronized) registration methods.
+     * */
+    private void removeRoute(String topicFilter, TopicMessageDeliverable deliverable){
+        subscriptions.remove(topicFilter, deliverable);
+        routesVersion.incrementAndGet();
+        compiledTopic.clear();
+    }
+
+    private TopicMessageDeliverable[] compileRoute(String topic){
+        long version = routesVersion.get();
+        TopicMessageDeliverable[] route = subscriptions.match(topic).toArray(EMPTY_ROUTE);
+        if(route.length == 0)
+            return route;
+
+        compiledTopic.put(topic, route);
+        // the subscriptions changed while compiling, the route may be outdated
+        if(version != routesVersion.get())
+            compiledTopic.remove(topic, route);
+
+        return route;
+    }
+
+    /**
+     * @return no. of concrete topics whose route is cached, at most messaging_client_mqtt_route_cache_size
+     * */
+    public int getCompiledRoutes(){
+        return compiledTopic.size();
+    }
     public Set<Topic> getListeningTopics(){
         return observables.keySet();
     }
+    /**
+     * @return for each subscribed topic, the messages discarded because its deliverable was full
+     * */
+    public synchronized Map<String, Long> getDroppedMessages(){
+        Map<String, Long> dropped = new HashMap<>();
+        observables.forEach((t, deliverable) -> dropped.put(t.getTopic(), deliverable.getDroppedMessages()));
+        return dropped;
+    }
+    /**
+     * @return no. of observers of the topic filter, 0 if it has none
+     * */
+    @SuppressWarnings("SuspiciousMethodCalls")
+    public synchronized int countObservers(String topic){
+        TopicMessageDeliverable deliverable = observables.get(topic);
+        return deliverable != null ? deliverable.countObservers() : 0;
+    }
     @SuppressWarnings("SuspiciousMethodCalls")
     public boolean isObserversEmpty(String topic){
         return observables.containsKey(topic);
@@ -125,41 +310,61 @@ public  class ForwardingListener implements MqttCallback {
     }
 
 
-    private synchronized long getMessageIdentifier(){
-        sequence = (sequence + 1) % Long.MAX_VALUE;
-        return sequence;
+    private long getMessageIdentifier(){
+        // wraps to 0 instead of becoming negative (-1 is reserved for generated messages)
+        return sequence.incrementAndGet() & Long.MAX_VALUE;
     }
 
     @Override
     public void messageArrived(String topic, org.eclipse.paho.client.mqttv3.MqttMessage mqttMessage) {
-        LOG.debug("Message arrived in listener:" + topic);
-        if(autoblacklisting && publishedTopics.contains(topic)) {// if this topic had been used to published
-            // publishedTopics.remove(topic);
+        if(LOG.isDebugEnabled())
+            LOG.debug("Message arrived in listener:" + topic);
+        if(autoblacklisting && publishedMessages.contains(topic, mqttMessage.getPayload())) {// echo of a message we published
+            if(LOG.isDebugEnabled())
+                LOG.debug("Echo of a published message of topic " + topic + " dropped");
             return;
         }
 
         if(VALIDATION_MODE) toValidation(topic,mqttMessage.getPayload());
 
-        boolean processed= false;
-        if(!compiledTopic.containsKey(topic)){
-            for(Topic t: messageDelivererSet)
-                if(t.equals(topic)) {
-
-                    compiledTopic.put(topic, observables.get(t));
-                    compiledTopic.get(topic).addMessage(new MqttMessage(topic, mqttMessage.getPayload(), mqttMessage.getQos(), mqttMessage.isRetained(), getMessageIdentifier(), originProtocol));
-
-                    processed = true;
-                    break;
-                }
-        } else if(compiledTopic.containsKey(topic)) {
-            // observables.get(t).notifyObservers(new MqttMessage(topic, mqttMessage.getPayload(), mqttMessage.getQos(), mqttMessage.isRetained(), getMessageIdentifier(), originProtocol));
-            compiledTopic.get(topic).addMessage(new MqttMessage(topic, mqttMessage.getPayload(), mqttMessage.getQos(), mqttMessage.isRetained(), getMessageIdentifier(), originProtocol));
+        TopicMessageDeliverable[] route = compiledTopic.get(topic);
+        if(route == null)
+            route = compileRoute(topic);
 
-            processed = true;
+        if(route.length == 0) {
+            LOG.warn("A message arrived and no one listening to it");
+            return;
+        }
+        DuplicateFilter filter = duplicateFilter;
+        if(filter != null && filter.isDuplicate(topic, mqttMessage.getPayload())) {
+            if(LOG.isDebugEnabled())
+                LOG.debug("Duplicated message of topic " + topic + " dropped");
+            return;
         }
 
-        if(!processed)
-            LOG.warn("A message arrived and no one listening to it");
+        // each matching subscription gets its own instance (sharing the payload array), its observers run in another thread
+        final byte[] payload = mqttMessage.getPayload();
+        final long id = getMessageIdentifier();
+        ShardedDispatcher shards = dispatcher;
+        int dispatched = 0;
+        for (TopicMessageDeliverable deliverable : route)
+            if (shards != null && deliverable.isDispatched())
+                dispatched++;
+            else
+                deliverable.addMessage(new MqttMessage(topic, payload, mqttMessage.getQos(), mqttMessage.isRetained(), id, originProtocol));
+
+        if(dispatched > 0)
+            // the shard of the topic hands the message to the SHARDED deliverables of the route
+            shards.dispatch(topic, dispatched == route.length ? route : dispatchedOf(route, dispatched), new MqttMessage(topic, payload, mqttMessage.getQos(), mqttMessage.isRetained(), id, originProtocol));
+    }
+
+    private static TopicMessageDeliverable[] dispatchedOf(TopicMessageDeliverable[] route, int dispatched){
+        TopicMessageDeliverable[] aux = new TopicMessageDeliverable[dispatched];
+        int i = 0;
+        for (TopicMessageDeliverable deliverable : route)
+            if (deliverable.isDispatched())
+                aux[i++] = deliverable;
+        return aux;
     }
 
     @Override
@@ -184,4 +389,51 @@ public  class ForwardingListener implements MqttCallback {
     public boolean hasObservers() {
         return !observables.isEmpty();
     }
+
+    /**
+     * Waits until the messages arrived so far are delivered by all the deliverables, the listener keeps running.
+     *
+     * @return true if all the messages were delivered before the timeout
+     * */
+    public boolean drain(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        ShardedDispatcher shards = dispatcher;
+        if(shards != null)
+            drained = shards.drain(timeout, unit);
+        for (TopicMessageDeliverable deliverable : new ArrayList<>(observables.values()))
+            drained = deliverable.drain(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS) && drained;
+
+        return drained;
+    }
+
+    /**
+     * Drains (see close(long, TimeUnit)) and stops all the deliverables waiting at most messaging_client_mqtt_delivery_drain_timeout ms.
+     * */
+    public boolean close() {
+        return close(DeliveryPool.getConfiguredDrainTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Unsubscribes all the observers. The messages already arrived are delivered first, waiting at most the timeout
+     * for all the deliverables; afterwards the deliverables are stopped.
+     *
+     * @return true if all the messages were delivered before the timeout
+     * */
+    public synchronized boolean close(long timeout, TimeUnit unit) {
+        // the dispatcher is shared, it is drained but left running for the other listeners
+        boolean drained = drain(timeout, unit);
+        dispatcher = null;
+
+        observables.forEach((t, deliverable) -> {
+            removeRoute(t.getTopic(), deliverable);
+            deliverable.stop();
+        });
+        observables = new Hashtable<>();
+        compiledTopic.clear();
+        if(!drained)
+            LOG.warn("Listener closed before delivering all the arrived messages");
+
+        return drained;
+    }
 }
@@ -0,0 +1,64 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.io.IOException;
+
+/**
+ * Extracts the ordering key of a message (e.g. the device id), see KeyPartitionedObserver.
+ * The messages with the same key are delivered in arrival order, messages with different keys may be delivered in parallel.
+ */
+@FunctionalInterface
+public interface KeyExtractor {
+
+    /**
+     * @return the key of the message, null if the message has no key (all the messages without key share one partition)
+     * */
+    Object keyOf(MqttMessage message);
+
+    /**
+     * @param level index (starting at 0) of the topic level used as key, e.g. 1 for the device of devices/[id]/temperature
+     * */
+    static KeyExtractor topicLevel(int level) {
+        return message -> {
+            String topic = message.getTopic();
+            int start = 0;
+            for (int i = 0; i < level; i++) {
+                start = topic.indexOf('/', start) + 1;
+                if (start == 0)
+                    return null; // less levels than the index
+            }
+            int end = topic.indexOf('/', start);
+            return topic.substring(start, end < 0 ? topic.length() : end);
+        };
+    }
+
+    /**
+     * @param field name of a top level field of the JSON payload. The payload is streamed until the field is found,
+     *              without building the whole document.
+     * */
+    static KeyExtractor jsonField(String field) {
+        final JsonFactory factory = new JsonFactory();
+        return message -> {
+            if (message.getPayload() == null)
+                return null;
+            try (JsonParser parser = factory.createParser(message.getPayload())) {
+                if (parser.nextToken() != JsonToken.START_OBJECT)
+                    return null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    boolean found = field.equals(parser.getCurrentName());
+                    parser.nextToken();
+                    if (found)
+                        return parser.getValueAsString();
+                    parser.skipChildren();
+                }
+            } catch (IOException e) {
+                return null; // not JSON, no key
+            }
+            return null;
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.Observer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps an observer of a hot topic to process its messages in parallel while keeping the order per key.
+ * Each message is routed by the hash of its key (see KeyExtractor) to one of a fixed number of partitions; each partition
+ * is a serial mailbox (TopicMessageDeliverable) running on the worker pool, so the observer is called concurrently for
+ * different keys and sequentially for the same key. The partitions take the mailbox (bound and overflow policy) and the
+ * batching of the DeliveryProfile of the topic, as the deliverable of the topic does.
+ *
+ * The deliverables find the wrapper with the wrapped observer, so it can be removed from a BrokerService or
+ * ForwardingListener with the original observer. Removing it stops the partitions.
+ */
+public class KeyPartitionedObserver implements MqttMessageObserver {
+    private final Observer observer;
+    private final KeyExtractor keyExtractor;
+    private final TopicMessageDeliverable[] partitions;
+
+    /**
+     * @param observer called in parallel for messages with different keys
+     * @param keyExtractor of the ordering key of the messages
+     * */
+    public KeyPartitionedObserver(Observer observer, KeyExtractor keyExtractor) {
+        this(observer, keyExtractor, getConfiguredPartitions(), DeliveryPool.getSharedExecutor());
+    }
+
+    /**
+     * @param observer called in parallel for messages with different keys
+     * @param keyExtractor of the ordering key of the messages
+     * @param topic filter the observer is subscribed to, its DeliveryProfile defines the mailbox of the partitions
+     * */
+    public KeyPartitionedObserver(Observer observer, KeyExtractor keyExtractor, String topic) {
+        this(observer, keyExtractor, getConfiguredPartitions(), DeliveryPool.getSharedExecutor(), topic, DeliveryProfile.forTopic(topic));
+    }
+
+    /**
+     * @param observer called in parallel for messages with different keys
+     * @param keyExtractor of the ordering key of the messages
+     * @param partitions number of partitions, the max. parallelism of the observer
+     * @param workers executor where the partitions run
+     * */
+    public KeyPartitionedObserver(Observer observer, KeyExtractor keyExtractor, int partitions, Executor workers) {
+        this(observer, keyExtractor, partitions, workers, null, DeliveryProfile.getDefault());
+    }
+
+    /**
+     * @param observer called in parallel for messages with different keys
+     * @param keyExtractor of the ordering key of the messages
+     * @param partitions number of partitions, the max. parallelism of the observer
+     * @param workers executor where the partitions run
+     * @param topic filter the observer is subscribed to, null if unknown
+     * @param profile defining the mailbox and the batching of each partition
+     * */
+    public KeyPartitionedObserver(Observer observer, KeyExtractor keyExtractor, int partitions, Executor workers, String topic, DeliveryProfile profile) {
+        this.observer = observer;
+        this.keyExtractor = keyExtractor;
+        this.partitions = new TopicMessageDeliverable[Math.max(partitions, 1)];
+        for (int i = 0; i < this.partitions.length; i++) {
+            this.partitions[i] = new TopicMessageDeliverable(topic != null ? topic : "key-partition-" + i, workers, profile.createMailbox(), profile.getBatchSize(), profile.getBatchLinger());
+            this.partitions[i].addObserver(observer);
+        }
+    }
+
+    /**
+     * @return no. of partitions set by messaging_client_mqtt_delivery_key_partitions, 0 or less means one per core
+     * */
+    public static int getConfiguredPartitions() {
+        Configurator conf = Configurator.getDefaultConfig();
+        int partitions = 0;
+        if (conf.containsKeyAnywhere(BrokerServiceConst.DELIVERY_KEY_PARTITIONS))
+            partitions = conf.getInt(BrokerServiceConst.DELIVERY_KEY_PARTITIONS);
+
+        return partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void update(String topic, MqttMessage message) {
+        partitions[partitionOf(keyExtractor.keyOf(message))].addMessage(message);
+    }
+
+    public int partitionOf(Object key) {
+        if (key == null)
+            return 0;
+
+        int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * Waits until the messages received so far are processed by the observer.
+     * */
+    public boolean drain(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        for (TopicMessageDeliverable partition : partitions)
+            drained = partition.drain(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS) && drained;
+
+        return drained;
+    }
+
+    public void stop() {
+        for (TopicMessageDeliverable partition : partitions)
+            partition.stop();
+    }
+
+    /**
+     * @return messages dropped by the mailboxes of the partitions, see BoundedMailbox
+     * */
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (TopicMessageDeliverable partition : partitions)
+            dropped += partition.getDroppedMessages();
+
+        return dropped;
+    }
+
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    public Observer getObserver() {
+        return observer;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        return o instanceof KeyPartitionedObserver && observer.equals(((KeyPartitionedObserver) o).observer);
+    }
+
+    @Override
+    public int hashCode() {
+        return observer.hashCode();
+    }
+}
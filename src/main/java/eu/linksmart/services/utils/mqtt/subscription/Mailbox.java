@@ -0,0 +1,75 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the messages waiting to be delivered by a TopicMessageDeliverable.
+ * Any thread can add messages, but only the deliverable consumes them (single consumer).
+ */
+public interface Mailbox {
+
+    enum Type {
+        /** unbounded linked queue (default) */
+        QUEUE,
+        /** pre-allocated ring buffer with selectable wait strategy */
+        RING
+    }
+
+    /**
+     * Adds a message without blocking.
+     *
+     * @return false if the mailbox is full
+     * */
+    boolean offer(MqttMessage message);
+
+    /**
+     * Adds a message, waiting for free space if the mailbox is full.
+     * */
+    void put(MqttMessage message) throws InterruptedException;
+
+    /**
+     * @return the next message, or null if the mailbox is empty
+     * */
+    MqttMessage poll();
+
+    /**
+     * @return the next message, waiting until one is available
+     * */
+    MqttMessage take() throws InterruptedException;
+
+    /**
+     * @return the next message, or null if none arrives before the timeout
+     * */
+    MqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Moves the available messages to the target collection without waiting.
+     *
+     * @return number of messages moved, at most max
+     * */
+    default int drainTo(Collection<? super MqttMessage> target, int max){
+        MqttMessage message;
+        int i = 0;
+        while (i < max && (message = poll()) != null) {
+            target.add(message);
+            i++;
+        }
+        return i;
+    }
+
+    int size();
+
+    default boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * @return number of messages discarded by the mailbox since its creation
+     * */
+    default long getDropped(){
+        return 0;
+    }
+}
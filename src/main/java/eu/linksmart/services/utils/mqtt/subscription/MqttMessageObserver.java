@@ -7,6 +7,11 @@ import java.util.Observer;
 
 /**
  * Created by José Ángel Carvajal on 02.12.2016 a researcher of Fraunhofer FIT.
+ *
+ * The observers of the same subscription receive the same MqttMessage instance one after the other, therefore a change
+ * of the message (e.g. setPayload) is seen by the observers called later. The other subscriptions matching the topic
+ * receive their own instance, delivered concurrently in other threads, sharing the payload array: the bytes of the
+ * payload must not be modified.
  */
 public interface MqttMessageObserver extends Observer {
     @Override
@@ -0,0 +1,95 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Default, unbounded mailbox backed by a lock-free ConcurrentLinkedQueue. Adding a message is a CAS; only when the
+ * consumer is parked waiting for messages the producer unparks it.
+ */
+public class QueueMailbox implements Mailbox {
+    private final ConcurrentLinkedQueue<MqttMessage> queue = new ConcurrentLinkedQueue<>();
+    // the consumer parked in take() or poll(timeout), if any
+    private volatile Thread waiting = null;
+
+    @Override
+    public boolean offer(MqttMessage message) {
+        queue.offer(message);
+        Thread consumer = waiting;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    @Override
+    public void put(MqttMessage message) {
+        offer(message);
+    }
+
+    @Override
+    public MqttMessage poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public MqttMessage take() throws InterruptedException {
+        MqttMessage message;
+        while ((message = await(0L)) == null) ;
+        return message;
+    }
+
+    @Override
+    public MqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        MqttMessage message;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+            if ((message = await(remaining)) != null)
+                return message;
+        return queue.poll();
+    }
+
+    /**
+     * Parks the consumer until a message arrives, the timeout passes or a spurious wake up.
+     *
+     * @param nanos max. time parked, 0 means without timeout
+     * */
+    private MqttMessage await(long nanos) throws InterruptedException {
+        MqttMessage message = queue.poll();
+        if (message != null)
+            return message;
+
+        waiting = Thread.currentThread();
+        try {
+            // a message offered before the consumer was published as waiting is found here
+            if ((message = queue.poll()) != null)
+                return message;
+            if (nanos > 0)
+                LockSupport.parkNanos(this, nanos);
+            else
+                LockSupport.park(this);
+        } finally {
+            waiting = null;
+        }
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        return queue.poll();
+    }
+
+    /**
+     * Traverses the queue, meant for monitoring only.
+     * */
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
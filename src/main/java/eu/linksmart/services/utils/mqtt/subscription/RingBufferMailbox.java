@@ -0,0 +1,166 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi-producer, single-consumer mailbox over a pre-allocated ring of slots (in the style of the LMAX Disruptor).
+ * Producers claim a sequence with a CAS and publish the message in its slot; the consumer frees the slot and advances its
+ * sequence. No node is allocated and no lock is taken per message, except to wake up a consumer waiting with the
+ * BLOCKING strategy. Producers wait (park) while the ring is full.
+ */
+public class RingBufferMailbox implements Mailbox {
+
+    public enum WaitStrategy {
+        /** the consumer sleeps on a condition and is signalled by the producers; lowest CPU usage */
+        BLOCKING,
+        /** the consumer spins and then yields the CPU between polls */
+        YIELDING,
+        /** the consumer spins without pause; lowest latency, burns one core */
+        BUSY_SPIN
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 10_000L;
+
+    private final AtomicReferenceArray<MqttMessage> slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    // next sequence to be claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    // next sequence to be consumed, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerWaiting = false;
+
+    /**
+     * @param size number of slots, rounded up to the next power of two
+     * @param waitStrategy how the consumer waits for messages in take()
+     * */
+    public RingBufferMailbox(int size, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(MqttMessage message) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() > mask)
+                return false;
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        slots.set((int) sequence & mask, message);
+
+        if (consumerWaiting)
+            signalConsumer();
+
+        return true;
+    }
+
+    @Override
+    public void put(MqttMessage message) throws InterruptedException {
+        while (!offer(message)) {
+            LockSupport.parkNanos(1000L);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public MqttMessage poll() {
+        long sequence = head.get();
+        int index = (int) sequence & mask;
+        MqttMessage message = slots.get(index);
+        if (message == null)
+            return null; // empty, or the producer claimed the slot but did not publish yet
+
+        slots.lazySet(index, null);
+        head.lazySet(sequence + 1);
+        return message;
+    }
+
+    @Override
+    public MqttMessage take() throws InterruptedException {
+        MqttMessage message;
+        int spins = 0;
+        while ((message = poll()) == null) {
+            switch (waitStrategy) {
+                case BLOCKING:
+                    return await();
+                case YIELDING:
+                    if (++spins > SPIN_TRIES)
+                        Thread.yield();
+                    break;
+                case BUSY_SPIN:
+                default:
+                    break;
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return message;
+    }
+
+    @Override
+    public MqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        MqttMessage message;
+        while ((message = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            LockSupport.parkNanos(Math.min(remaining, PARK_NANOS));
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return message;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    private MqttMessage await() throws InterruptedException {
+        MqttMessage message;
+        lock.lockInterruptibly();
+        try {
+            consumerWaiting = true;
+            while ((message = poll()) == null)
+                notEmpty.await();
+        } finally {
+            consumerWaiting = false;
+            lock.unlock();
+        }
+        return message;
+    }
+
+    private void signalConsumer() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe cache of the routes (all the matching deliverables) of the concrete topics of a ForwardingListener.
+ * Like TopicMatchCache, the entries are kept in LRU order in a few lock-striped segments and the least recently used
+ * entry of a full segment is evicted, so the memory used does not grow with the number of distinct topics arriving.
+ * A missing route is compiled again from the TopicTrie of the subscriptions.
+ */
+final class RouteCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int STRIPES = 8;
+
+    private final int capacity;
+    private final Segment[] segments;
+
+    /**
+     * @param capacity max. number of concrete topics remembered, 0 or less disables the cache
+     * */
+    RouteCache(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        int stripes = this.capacity >= STRIPES * 16 ? STRIPES : 1;
+        segments = new Segment[stripes];
+        // the remainder goes to the first segments, so all together hold exactly the capacity
+        for (int i = 0; i < stripes; i++)
+            segments[i] = new Segment(this.capacity / stripes + (i < this.capacity % stripes ? 1 : 0));
+    }
+
+    /**
+     * @return the capacity set by messaging_client_mqtt_route_cache_size or DEFAULT_CAPACITY if it is not set
+     * */
+    static int getConfiguredCapacity() {
+        Configurator conf = Configurator.getDefaultConfig();
+        if (conf.containsKeyAnywhere(BrokerServiceConst.ROUTE_CACHE_SIZE))
+            return conf.getInt(BrokerServiceConst.ROUTE_CACHE_SIZE);
+
+        return DEFAULT_CAPACITY;
+    }
+
+    /**
+     * @return the cached route, or null if the topic is not cached
+     * */
+    TopicMessageDeliverable[] get(String topic) {
+        if (capacity == 0)
+            return null;
+
+        Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            return segment.get(topic);
+        }
+    }
+
+    void put(String topic, TopicMessageDeliverable[] route) {
+        if (capacity == 0)
+            return;
+
+        Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            segment.put(topic, route);
+        }
+    }
+
+    /**
+     * Removes the route only if it is still the given one.
+     * */
+    void remove(String topic, TopicMessageDeliverable[] route) {
+        if (capacity == 0)
+            return;
+
+        Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            segment.remove(topic, route);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments)
+            synchronized (segment) {
+                segment.clear();
+            }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    private Segment segmentFor(String topic) {
+        if (segments.length == 1)
+            return segments[0];
+
+        int hash = topic.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private static final class Segment extends LinkedHashMap<String, TopicMessageDeliverable[]> {
+        private final int maxEntries;
+
+        private Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TopicMessageDeliverable[]> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
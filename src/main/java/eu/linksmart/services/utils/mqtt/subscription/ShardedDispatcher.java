@@ -0,0 +1,190 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatcher of DeliveryMode.SHARDED: a fixed number of shard threads (default one per core) deliver the messages of
+ * all the subscriptions. Each concrete topic is hashed to a fixed shard, therefore the messages of a topic are delivered
+ * in arrival order, while hot and cold topics share a bounded set of threads.
+ * Note that the observers of a wildcard subscription can be called concurrently by several shards (one per concrete topic).
+ * The queue of each shard is a Mailbox of the default DeliveryProfile, so it is bounded as configured there and a full
+ * shard blocks or drops messages following its OverflowPolicy. One dispatcher is shared by the process, see
+ * DeliveryPool.getSharedDispatcher().
+ */
+public class ShardedDispatcher {
+    private static final Logger LOG = LogManager.getLogger(ShardedDispatcher.class);
+    private static final long DRAIN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Shard[] shards;
+    private final long startTime = System.nanoTime();
+    private volatile boolean active = true;
+
+    /**
+     * @param shards number of shard threads, 0 or less means one per core
+     * */
+    public ShardedDispatcher(int shards) {
+        this(shards, DeliveryProfile.getDefault());
+    }
+
+    /**
+     * @param shards number of shard threads, 0 or less means one per core
+     * @param profile defining the queue (mailbox) of each shard
+     * */
+    public ShardedDispatcher(int shards, DeliveryProfile profile) {
+        this.shards = new Shard[shards > 0 ? shards : Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(profile.createMailbox());
+            Thread thread = new Thread(this.shards[i], "mqtt-shard-" + i);
+            thread.setDaemon(true);
+            this.shards[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues the message in the shard of its topic, the shard hands it to all the deliverables of the route.
+     * If the queue of the shard is full, the caller waits or the message is dropped following the OverflowPolicy.
+     * */
+    public void dispatch(String topic, TopicMessageDeliverable[] route, MqttMessage message) {
+        if (!active) {
+            LOG.debug("Message of topic " + topic + " discarded, the dispatcher is closed");
+            return;
+        }
+        Shard shard = shards[shardOf(topic)];
+        try {
+            shard.queue.put(new Dispatch(route, message));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for space in the shard of topic " + topic + ", message dropped", e);
+            return;
+        }
+        shard.added.increment();
+    }
+
+    public int shardOf(String topic) {
+        int hash = topic.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Waits until the messages dispatched so far are delivered.
+     *
+     * @return true if drained, false if the timeout passed first
+     * */
+    public boolean drain(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard shard : shards) {
+            final long target = shard.added.sum();
+            while (shard.processed + shard.queue.getDropped() < target && active) {
+                if (System.nanoTime() - deadline >= 0)
+                    return false;
+                LockSupport.parkNanos(DRAIN_CHECK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the shard threads, the messages not delivered yet are discarded.
+     * */
+    public void stop() {
+        active = false;
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
+            while (shard.queue.poll() != null);
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * @return messages waiting in the queue of the shard
+     * */
+    public int getQueueDepth(int shard) {
+        return shards[shard].queue.size();
+    }
+
+    /**
+     * @return messages dropped by the full queue of the shard
+     * */
+    public long getDropped(int shard) {
+        return shards[shard].queue.getDropped();
+    }
+
+    /**
+     * @return messages delivered by the shard
+     * */
+    public long getDispatched(int shard) {
+        return shards[shard].processed;
+    }
+
+    /**
+     * @return fraction of the time (0 to 1) since the dispatcher started that the shard spent delivering
+     * */
+    public double getUtilization(int shard) {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? Math.min(1.0, (double) shards[shard].busyNanos / elapsed) : 0.0;
+    }
+
+    private final class Shard implements Runnable {
+        // holds Dispatch messages only
+        private final Mailbox queue;
+        private final LongAdder added = new LongAdder();
+        private Thread thread;
+        // only written by the shard thread
+        private volatile long processed = 0, busyNanos = 0;
+
+        private Shard(Mailbox queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (active) {
+                Dispatch dispatch;
+                try {
+                    dispatch = (Dispatch) queue.take();
+                } catch (InterruptedException e) {
+                    continue; // stop() interrupts the waiting shards
+                }
+                long start = System.nanoTime();
+                final int last = dispatch.route.length - 1;
+                for (int i = 0; i <= last; i++)
+                    try {
+                        // one instance per subscription (see MqttMessageObserver), copied before the observers can change it
+                        dispatch.route[i].addMessage(i == last ? dispatch.message : new MqttMessage(dispatch.message));
+                    } catch (Exception e) {
+                        LOG.error(e.getMessage(), e);
+                    }
+                busyNanos += System.nanoTime() - start;
+                processed++;
+            }
+        }
+    }
+
+    /**
+     * Message with its route; as a copy of the message it is measured (payload bytes, waiting time) by the mailbox.
+     * */
+    private static final class Dispatch extends MqttMessage {
+        private final TopicMessageDeliverable[] route;
+        private final MqttMessage message;
+
+        private Dispatch(TopicMessageDeliverable[] route, MqttMessage message) {
+            super(message);
+            this.route = route;
+            this.message = message;
+        }
+    }
+}
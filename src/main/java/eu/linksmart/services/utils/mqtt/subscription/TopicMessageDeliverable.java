@@ -10,18 +10,54 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Observer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by José Ángel Carvajal on 23.03.2016 a researcher of Fraunhofer FIT.
+ *
+ * Lifecycle: the deliverable is started on construction, drain(timeout) waits until the messages added so far are delivered,
+ * and stop() ends the delivery thread (or the turns on the pool) and discards the messages still waiting.
+ * A stopped deliverable cannot be started again.
  */
 public class TopicMessageDeliverable implements Runnable{
-    private LinkedBlockingQueue<MqttMessage> mqttMessages = new LinkedBlockingQueue<>();
-    private LinkedList<Observer> observers = new LinkedList<>();
+    // max. messages delivered in one turn on the shared pool before yielding the thread to other deliverables
+    private static final int POOL_THROUGHPUT = DeliveryPool.getConfiguredThroughput();
+    private static final long DRAIN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Mailbox mailbox;
+    private static final Observer[] NO_OBSERVERS = new Observer[0];
+    // copy-on-write: replaced (under the monitor) on registration, read without lock on delivery
+    private volatile Observer[] observers = NO_OBSERVERS;
     protected final String topic;
+    // executor of the pooled mode, null if the deliverable runs on its own thread
+    private final Executor executor;
+    // executor running the loop of the own thread (platform or virtual), null for a new platform thread
+    private final Executor threadExecutor;
+    // the messages are delivered in the thread adding them (a ShardedDispatcher shard), there is no mailbox consumer
+    private final boolean dispatched;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // max. messages per delivery, and max. time (ns) a dedicated thread waits to fill a batch
+    private final int batchSize;
+    private final long batchLinger;
+    // deliverables started and not stopped yet
+    private static final AtomicInteger live = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean(false), stopped = new AtomicBoolean(false);
+    private volatile Thread thread = null;
+    // messages accepted by addMessage, and messages processed by the single consumer (thread or serial pool turns)
+    private final LongAdder added = new LongAdder();
+    private volatile long processed = 0;
 
     //Start of code made for testing performance
     private final boolean VALIDATION_MODE;
@@ -31,11 +67,67 @@ public class TopicMessageDeliverable implements Runnable{
 
     protected transient Logger loggerService = LogManager.getLogger(TopicMessageDeliverable.class);
     public TopicMessageDeliverable(String topic) {
-        loggerService.debug("Starting new ");
-        Thread thread =new Thread(this);
-        thread.start();
-
+        this(topic, DeliveryMode.getDefault());
+    }
+    public TopicMessageDeliverable(String topic, DeliveryMode mode) {
+        this(topic, mode, DeliveryProfile.forTopic(topic));
+    }
+    /**
+     * @param topic of the deliverable
+     * @param mode used if the profile does not define one
+     * @param profile defining the mailbox of the deliverable
+     * */
+    public TopicMessageDeliverable(String topic, DeliveryMode mode, DeliveryProfile profile) {
+        this(topic, mode, profile, DeliveryPool.getExecutorFactory());
+    }
+    /**
+     * @param topic of the deliverable
+     * @param mode used if the profile does not define one
+     * @param profile defining the mailbox of the deliverable
+     * @param executorFactory providing the executor of the mode
+     * */
+    public TopicMessageDeliverable(String topic, DeliveryMode mode, DeliveryProfile profile, DeliveryExecutorFactory executorFactory) {
+        this(topic, profile.getMode() != null ? profile.getMode() : mode, executorFactory, profile.createMailbox(), profile.getBatchSize(), profile.getBatchLinger());
+    }
+    private TopicMessageDeliverable(String topic, DeliveryMode mode, DeliveryExecutorFactory executorFactory, Mailbox mailbox, int batchSize, long batchLinger) {
+        this(
+                topic,
+                mode == DeliveryMode.POOLED ? executorFactory.getExecutor(topic, mode) : null,
+                mode == DeliveryMode.POOLED || mode == DeliveryMode.SHARDED ? null : executorFactory.getExecutor(topic, mode),
+                mode == DeliveryMode.SHARDED,
+                mailbox, batchSize, batchLinger
+        );
+    }
+    public TopicMessageDeliverable(String topic, Executor executor) {
+        this(topic, executor, new QueueMailbox());
+    }
+    /**
+     * @param topic of the deliverable
+     * @param executor where the deliverable runs as a serial mailbox. If null, the deliverable starts its own thread.
+     * @param mailbox where the messages wait to be delivered
+     * */
+    public TopicMessageDeliverable(String topic, Executor executor, Mailbox mailbox) {
+        this(topic, executor, mailbox, 1, 0);
+    }
+    /**
+     * @param topic of the deliverable
+     * @param executor where the deliverable runs as a serial mailbox. If null, the deliverable starts its own thread.
+     * @param mailbox where the messages wait to be delivered
+     * @param batchSize max. messages handed at once to a BatchMqttMessageObserver, 1 disables batching
+     * @param batchLinger max. milliseconds the own thread waits for more messages to fill a batch. On a pool the batches
+     *                    are made only from the messages already waiting, to not hold the pool threads.
+     * */
+    public TopicMessageDeliverable(String topic, Executor executor, Mailbox mailbox, int batchSize, long batchLinger) {
+        this(topic, executor, null, false, mailbox, batchSize, batchLinger);
+    }
+    private TopicMessageDeliverable(String topic, Executor executor, Executor threadExecutor, boolean dispatched, Mailbox mailbox, int batchSize, long batchLinger) {
         this.topic=topic;
+        this.executor = executor;
+        this.threadExecutor = threadExecutor;
+        this.dispatched = dispatched;
+        this.mailbox = mailbox;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchLinger = TimeUnit.MILLISECONDS.toNanos(Math.max(batchLinger, 0));
 
         /// Code for validation and test proposes
         if(VALIDATION_MODE = Configurator.getDefaultConfig().containsKeyAnywhere(Const.VALIDATION_DELIVERER)) {
@@ -46,67 +138,300 @@ public class TopicMessageDeliverable implements Runnable{
             validator = null;
         }
 
+        start();
+    }
+
+    /**
+     * Starts the delivery thread, or enables the turns on the pool. Called by the constructor, it has no effect if the
+     * deliverable was already started or stopped.
+     * */
+    public synchronized void start() {
+        if(stopped.get() || !started.compareAndSet(false, true))
+            return;
+
+        live.incrementAndGet();
+        if(dispatched)
+            return;
+        if(executor == null) {
+            loggerService.debug("Starting new delivery thread for topic "+topic);
+            if(threadExecutor != null)
+                threadExecutor.execute(this);
+            else
+                new Thread(this, "mqtt-delivery-" + topic).start();
+        } else if(!mailbox.isEmpty())
+            schedule();
+    }
+
+    /**
+     * Waits until all the messages added before the call are delivered (or dropped by the mailbox).
+     *
+     * @return true if drained, false if the timeout passed first
+     * */
+    public boolean drain(long timeout, TimeUnit unit) {
+        final long target = added.sum(), deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (processed + mailbox.getDropped() < target && activeTopic) {
+            if (System.nanoTime() - deadline >= 0)
+                return false;
+            LockSupport.parkNanos(DRAIN_CHECK_NANOS);
+        }
+        return processed + mailbox.getDropped() >= target;
+    }
+
+    /**
+     * Stops the delivery and releases the thread (if any), the observers and the messages not delivered yet.
+     * A delivery in progress is interrupted, use drain(timeout) before to deliver the waiting messages.
+     * */
+    public void stop() {
+        if(!stopped.compareAndSet(false, true))
+            return;
+
+        activeTopic = false;
+        for (Observer observer : observers)
+            release(observer);
+        observers = NO_OBSERVERS;
+        synchronized (this) {
+            if(started.get())
+                live.decrementAndGet();
+        }
+        // the waiting messages are discarded by the consumer, the mailboxes are single consumer
+        Thread aux = thread;
+        if(aux != null)
+            aux.interrupt();
+        else if(executor != null)
+            schedule();
     }
 
-    public synchronized void setIsActive(boolean activeTopic) {
-        this.activeTopic = activeTopic;
+    public boolean isActive() {
+        return activeTopic && started.get();
     }
 
-    private boolean activeTopic = true;
+    /**
+     * @return number of deliverables started and not stopped in this JVM
+     * */
+    public static int getLiveDeliverables() {
+        return live.get();
+    }
 
-    public synchronized void addObserver(Observer observer){
-        if(!observers.contains(observer))
-            observers.add(observer);
-        else
-            loggerService.warn("the same observer was intent to be added in the same Message");
+    /**
+     * @param activeTopic false stops the deliverable (see stop()), a stopped deliverable cannot be activated again.
+     * */
+    public void setIsActive(boolean activeTopic) {
+        if(!activeTopic)
+            stop();
+    }
+
+    private volatile boolean activeTopic = true;
+
+    /**
+     * @return false if the observer was already registered, then a rejected KeyPartitionedObserver is stopped
+     * */
+    public synchronized boolean addObserver(Observer observer){
+        int i = indexOf(observer);
+        if(i < 0) {
+            Observer[] aux = Arrays.copyOf(observers, observers.length + 1);
+            aux[observers.length] = observer;
+            observers = aux;
+            return true;
+        }
+        loggerService.warn("the same observer was intent to be added in the same Message");
+        if(observers[i] != observer)
+            release(observer);
+        return false;
     }
 
     @Override
     public void run() {
+        // the thread is named by whoever creates it, the threads of an executor are not renamed
+        thread = Thread.currentThread();
         MqttMessage message;
-        boolean active;
-        synchronized (this) {
-             active = activeTopic;
-        }
-        while (active) {
-
-            loggerService.debug(" Started the topic loop");
+        while (activeTopic) {
+            int n = 0;
             try {
-                message = mqttMessages.take();
-                loggerService.debug("Processing incoming message of topic "+ message.getTopic());
-                synchronized (this) {
-                    for (Observer observer : observers)
-                        observer.update(null, message);
+                message = mailbox.take();
+                if(batchSize == 1) {
+                    n = 1;
+                    deliver(message);
+                } else {
+                    List<MqttMessage> batch = fillBatch(message);
+                    n = batch.size();
+                    deliver(batch);
                 }
 
+            } catch (InterruptedException e) {
+                // stop() interrupts the thread waiting for messages
+                if(activeTopic)
+                    loggerService.warn("Delivery thread of topic "+topic+" interrupted while active");
             } catch (Exception e) {
                loggerService.error(e.getMessage(),e);
             }
-            synchronized (this) {
-                active = activeTopic;
+            processed += n;
+        }
+        discard();
+        thread = null;
+    }
+
+    // releases the messages not delivered, only called by the consumer
+    private void discard(){
+        while (mailbox.poll() != null) ;
+    }
+
+    private void deliver(MqttMessage message){
+        if(loggerService.isDebugEnabled())
+            loggerService.debug("Processing incoming message of topic "+ message.getTopic());
+        for (Observer observer : observers)
+            if (observer instanceof BatchMqttMessageObserver)
+                // as in a batch, a batch observer receives the topic filter of the subscription
+                ((BatchMqttMessageObserver) observer).update(topic, Collections.singletonList(message));
+            else
+                observer.update(null, message);
+    }
+
+    /**
+     * Delivers a batch. Batch observers receive the whole batch, the other observers each message in order.
+     * */
+    private void deliver(List<MqttMessage> batch){
+        if(loggerService.isDebugEnabled())
+            loggerService.debug("Processing "+batch.size()+" incoming messages of topic "+ topic);
+        List<MqttMessage> view = Collections.unmodifiableList(batch);
+        for (Observer observer : observers)
+            if (observer instanceof BatchMqttMessageObserver)
+                ((BatchMqttMessageObserver) observer).update(topic, view);
+            else
+                for (MqttMessage message : batch)
+                    observer.update(null, message);
+    }
+
+    private List<MqttMessage> fillBatch(MqttMessage first) throws InterruptedException {
+        List<MqttMessage> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        mailbox.drainTo(batch, batchSize - 1);
+        if(batchLinger > 0) {
+            final long deadline = System.nanoTime() + batchLinger;
+            MqttMessage message;
+            long remaining;
+            while (batch.size() < batchSize && (remaining = deadline - System.nanoTime()) > 0 && (message = mailbox.poll(remaining, TimeUnit.NANOSECONDS)) != null) {
+                batch.add(message);
+                mailbox.drainTo(batch, batchSize - batch.size());
+            }
+        }
+        return batch;
+    }
+
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true))
+            try {
+                executor.execute(this::drain);
+            }catch (RejectedExecutionException e){
+                scheduled.set(false);
+                loggerService.error("Delivery of topic "+topic+" rejected by the executor: "+e.getMessage(), e);
             }
+    }
+
+    /**
+     * One turn of the mailbox on the shared pool. Only one turn per deliverable is scheduled at any time,
+     * therefore the messages of the topic are delivered in arrival order.
+     * */
+    private void drain(){
+        if(!activeTopic) {
+            discard();
+            return; // scheduled stays set, the deliverable is not scheduled anymore
+        }
+        if(batchSize == 1) {
+            MqttMessage message;
+            for (int i = 0; i < POOL_THROUGHPUT && (message = mailbox.poll()) != null; i++)
+                try {
+                    deliver(message);
+                } catch (Exception e) {
+                    loggerService.error(e.getMessage(), e);
+                } finally {
+                    processed++;
+                }
+        } else {
+            List<MqttMessage> batch;
+            for (int i = 0; i < POOL_THROUGHPUT && mailbox.drainTo(batch = new ArrayList<>(batchSize), Math.min(batchSize, POOL_THROUGHPUT - i)) > 0; i += batch.size())
+                try {
+                    deliver(batch);
+                } catch (Exception e) {
+                    loggerService.error(e.getMessage(), e);
+                } finally {
+                    processed += batch.size();
+                }
         }
+
+        scheduled.set(false);
+        // messages added after the last poll must not wait for the next arrival
+        if(!mailbox.isEmpty())
+            schedule();
     }
 
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
-        synchronized (this) {
-            activeTopic = false;
-        }
+        stop();
     }
 
     public synchronized void deleteObserver(Observer listener) {
-        observers.remove(listener);
+        int i = indexOf(listener);
+        if(i < 0)
+            return;
+
+        Observer removed = observers[i];
+        Observer[] aux = new Observer[observers.length - 1];
+        System.arraycopy(observers, 0, aux, 0, i);
+        System.arraycopy(observers, i + 1, aux, i, observers.length - i - 1);
+        observers = aux;
+        release(removed);
     }
 
-    public synchronized int countObservers() {
-        return observers.size();
+    // stops the partitions of a key partitioned observer no longer registered
+    private static void release(Observer observer){
+        if(observer instanceof KeyPartitionedObserver)
+            ((KeyPartitionedObserver) observer).stop();
     }
 
-    public synchronized void addMessage(MqttMessage mqttMessage){
+    public int countObservers() {
+        return observers.length;
+    }
 
-        mqttMessages.add(mqttMessage);
+    // a KeyPartitionedObserver is found with the observer it wraps, and the other way around
+    private int indexOf(Observer observer){
+        Observer wrapped = unwrap(observer);
+        Observer[] aux = observers;
+        for (int i = 0; i < aux.length; i++)
+            if (unwrap(aux[i]).equals(wrapped))
+                return i;
+        return -1;
+    }
+
+    private static Observer unwrap(Observer observer){
+        return observer instanceof KeyPartitionedObserver ? ((KeyPartitionedObserver) observer).getObserver() : observer;
+    }
+
+    // lock-free unless the mailbox is bounded and full; never waits for the observers
+    public void addMessage(MqttMessage mqttMessage){
+        if(!activeTopic) {
+            if(loggerService.isDebugEnabled())
+                loggerService.debug("Message of topic "+mqttMessage.getTopic()+" discarded, the deliverable of "+topic+" is stopped");
+            return;
+        }
+
+        if(dispatched) {
+            // already in the shard thread of the topic
+            deliver(mqttMessage);
+            return;
+        }
+
+        try {
+            mailbox.put(mqttMessage);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            loggerService.error("Interrupted while waiting for space in the mailbox of topic "+topic+", message dropped", e);
+            return;
+        }
+        // counted once in the mailbox, a message never added must not be waited for by drain()
+        added.increment();
+        if(executor != null && started.get())
+            schedule();
 
        // if(VALIDATION_MODE) toValidation(mqttMessage.getTopic(),mqttMessage.getPayload());
     }
@@ -122,8 +447,26 @@ public class TopicMessageDeliverable implements Runnable{
 
     }
 
+    /**
+     * @return true if the messages are delivered by a ShardedDispatcher instead of the own mailbox
+     * */
+    public boolean isDispatched() {
+        return dispatched;
+    }
+
+    public Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * @return messages of the topic discarded by the overflow policy of the mailbox
+     * */
+    public long getDroppedMessages() {
+        return mailbox.getDropped();
+    }
+
     public boolean containsListener(Observer listener) {
 
-        return observers.contains(listener);
+        return indexOf(listener) >= 0;
     }
 }
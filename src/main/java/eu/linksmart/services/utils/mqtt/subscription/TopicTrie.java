@@ -0,0 +1,187 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of MQTT topic filters organised as a trie over the '/' levels of the filter.
+ * Each level is a node; the single-level wildcard '+' and the multi-level wildcard '#' have their own slots in the node.
+ * Looking up a concrete topic walks the trie once per level, therefore the cost depends on the depth of the topic and not
+ * on the number of registered filters.
+ *
+ * Lookups are lock-free and can run concurrently with put/remove. Modifications are serialized among themselves.
+ *
+ * @param <T> the type of the values attached to the topic filters
+ */
+public class TopicTrie<T> {
+    public static final char LEVEL_SEPARATOR = '/';
+    public static final String SINGLE_LEVEL_WILDCARD = "+", MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node<T> root = new Node<>(null, null);
+    private final Object mutationLock = new Object();
+    private volatile int size = 0;
+
+    /**
+     * Attaches a value to a topic filter. The same value can be attached only once to the same filter.
+     *
+     * @param topicFilter MQTT topic filter, can contain '+' and '#' wildcards
+     * @param value to be returned by the lookups matching the filter
+     * @return true if the value was added, false if it was already attached to the filter
+     * @exception IllegalArgumentException if the multi-level wildcard is not the last level of the filter
+     * */
+    public boolean put(String topicFilter, T value) {
+        String[] levels = split(topicFilter);
+        synchronized (mutationLock) {
+            Node<T> node = root;
+            for (String level : levels)
+                node = node.getOrCreate(level);
+
+            if (node.values.addIfAbsent(value)) {
+                size++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Detaches a value from a topic filter. Nodes left without values and children are pruned.
+     *
+     * @param topicFilter MQTT topic filter the value was attached to
+     * @param value to be detached
+     * @return true if the value was attached to the filter
+     * */
+    public boolean remove(String topicFilter, T value) {
+        String[] levels = split(topicFilter);
+        synchronized (mutationLock) {
+            Node<T> node = root;
+            for (int i = 0; i < levels.length && node != null; i++)
+                node = node.get(levels[i]);
+
+            if (node == null || !node.values.remove(value))
+                return false;
+            size--;
+
+            while (node.parent != null && node.isEmpty()) {
+                node.parent.prune(node);
+                node = node.parent;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Collects all values attached to filters matching the given concrete topic, following the MQTT 3.1.1 matching rules.
+     * I.e. '+' matches exactly one level, '#' matches the parent level and any number of child levels,
+     * and topics starting with '$' are not matched by filters starting with a wildcard.
+     *
+     * @param topic concrete topic (without wildcards)
+     * @return the matching values; a value attached to several matching filters is returned once per filter
+     * */
+    public List<T> match(String topic) {
+        List<T> result = new ArrayList<>();
+        collect(root, topic, 0, result);
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void collect(Node<T> node, String topic, int start, List<T> result) {
+        boolean wildcardsAllowed = start != 0 || topic.isEmpty() || topic.charAt(0) != '$';
+
+        Node<T> multiLevel = node.multiLevel;
+        if (multiLevel != null && wildcardsAllowed)
+            result.addAll(multiLevel.values);
+
+        if (start > topic.length()) {
+            // all levels consumed
+            result.addAll(node.values);
+            return;
+        }
+
+        int end = topic.indexOf(LEVEL_SEPARATOR, start);
+        if (end < 0)
+            end = topic.length();
+
+        if (!node.children.isEmpty()) {
+            Node<T> child = node.children.get(topic.substring(start, end));
+            if (child != null)
+                collect(child, topic, end + 1, result);
+        }
+
+        Node<T> singleLevel = node.singleLevel;
+        if (singleLevel != null && wildcardsAllowed)
+            collect(singleLevel, topic, end + 1, result);
+    }
+
+    private static String[] split(String topicFilter) {
+        if (topicFilter == null)
+            throw new IllegalArgumentException("The topic filter cannot be null");
+
+        String[] levels = topicFilter.split(String.valueOf(LEVEL_SEPARATOR), -1);
+        for (int i = 0; i < levels.length - 1; i++)
+            if (MULTI_LEVEL_WILDCARD.equals(levels[i]))
+                throw new IllegalArgumentException("The multi-level wildcard must be the last level of the topic filter: " + topicFilter);
+
+        return levels;
+    }
+
+    private static final class Node<T> {
+        private final Node<T> parent;
+        private final String level;
+        private final ConcurrentMap<String, Node<T>> children = new ConcurrentHashMap<>();
+        private final CopyOnWriteArrayList<T> values = new CopyOnWriteArrayList<>();
+        private volatile Node<T> singleLevel = null, multiLevel = null;
+
+        private Node(Node<T> parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+
+        private Node<T> get(String level) {
+            if (SINGLE_LEVEL_WILDCARD.equals(level))
+                return singleLevel;
+            if (MULTI_LEVEL_WILDCARD.equals(level))
+                return multiLevel;
+            return children.get(level);
+        }
+
+        private Node<T> getOrCreate(String level) {
+            Node<T> node = get(level);
+            if (node != null)
+                return node;
+
+            node = new Node<>(this, level);
+            if (SINGLE_LEVEL_WILDCARD.equals(level))
+                singleLevel = node;
+            else if (MULTI_LEVEL_WILDCARD.equals(level))
+                multiLevel = node;
+            else
+                children.put(level, node);
+
+            return node;
+        }
+
+        private void prune(Node<T> child) {
+            if (singleLevel == child)
+                singleLevel = null;
+            else if (multiLevel == child)
+                multiLevel = null;
+            else
+                children.remove(child.level, child);
+        }
+
+        private boolean isEmpty() {
+            return values.isEmpty() && children.isEmpty() && singleLevel == null && multiLevel == null;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import eu.linksmart.services.utils.serialization.Deserializer;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.IOException;
+
+/**
+ * Observer receiving the payload of the messages already deserialized. The payload is decoded once per message and type
+ * (see MqttMessage.getPayload(Class, Deserializer)), therefore all typed observers of a message with the same type
+ * receive the same instance, which must be handled as read-only.
+ */
+public interface TypedMqttMessageObserver<T> extends MqttMessageObserver {
+    @Override
+    default void update(String topic, MqttMessage message){
+        T payload;
+        try {
+            payload = message.getPayload(getPayloadType(), getDeserializer());
+        } catch (IOException e) {
+            onDecodingError(topic, message, e);
+            return;
+        }
+        update(topic, message, payload);
+    }
+
+    /**
+     * @param topic the topic filter of the subscription, the message carries its concrete topic
+     * @param message the received message
+     * @param payload the decoded payload, shared with the other observers of the message
+     * */
+    void update(String topic, MqttMessage message, T payload);
+
+    Class<T> getPayloadType();
+
+    default Deserializer getDeserializer(){
+        return Deserializer.defaultDeserializer;
+    }
+
+    /**
+     * Called instead of update when the payload cannot be decoded as getPayloadType(). By default the error is logged.
+     * */
+    default void onDecodingError(String topic, MqttMessage message, IOException error){
+        LogManager.getLogger(TypedMqttMessageObserver.class).error("Payload of " + message.getTopic() + " cannot be decoded as " + getPayloadType().getSimpleName() + ": " + error.getMessage(), error);
+    }
+}
@@ -0,0 +1,24 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Access to virtual threads. This is the Java 8 version, without support; the multi-release JAR contains the
+ * Java 21 version of this class (src/main/java21) used by the JVMs supporting them.
+ */
+final class VirtualThreads {
+    private VirtualThreads(){
+        // static access only
+    }
+
+    static boolean isSupported(){
+        return false;
+    }
+
+    /**
+     * @return null, the callers fall back to platform threads
+     * */
+    static Executor newThreadPerTaskExecutor(String namePrefix){
+        return null;
+    }
+}
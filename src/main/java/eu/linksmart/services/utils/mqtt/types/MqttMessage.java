@@ -1,10 +1,14 @@
 package eu.linksmart.services.utils.mqtt.types;
 
+import eu.linksmart.services.utils.serialization.Deserializer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by Caravajal on 25.03.2015.
@@ -21,6 +25,9 @@ public class MqttMessage implements Serializable {
 
     private final UUID originProtocol;
 
+    // payload decoded by getPayload(Class, Deserializer), one entry per type
+    private transient volatile Map<Class<?>, Object> decoded = null;
+
     public MqttMessage() {
         this.originProtocol = null;
     }
@@ -34,6 +41,13 @@ public class MqttMessage implements Serializable {
         this.originProtocol = originProtocol;
     }
 
+    /**
+     * Copy of the message sharing its payload array, the payloads decoded by getPayload(Class, Deserializer) are not copied.
+     * */
+    public MqttMessage(MqttMessage message) {
+        this(message.topic, message.payload, message.QoS, message.retained, message.sequence, message.originProtocol);
+    }
+
 
     public int getQoS() {
         return QoS;
@@ -59,8 +73,132 @@ public class MqttMessage implements Serializable {
 
     public void setPayload(byte[] payload) {
         this.payload = payload;
+        decoded = null;
+    }
+
+    /**
+     * Decodes the payload as the given type once per message, the following calls with the same type (e.g. from the
+     * other observers of the message) return the same instance, which therefore must be handled as read-only.
+     * The instance is the one of the first deserializer used for the type. Decoding failures are not memoized.
+     *
+     * @param tClass the type of the payload
+     * @param deserializer used to decode the payload, if not decoded yet
+     *
+     * @return the decoded payload, null if there is no payload
+     *
+     * @exception IOException if the payload cannot be decoded as the type
+     * */
+    @SuppressWarnings("unchecked")
+    public <T> T getPayload(Class<T> tClass, Deserializer deserializer) throws IOException {
+        if (payload == null)
+            return null;
+
+        Map<Class<?>, Object> cache = decoded;
+        if (cache == null) {
+            synchronized (this) {
+                if ((cache = decoded) == null)
+                    decoded = cache = new ConcurrentHashMap<>(2);
+            }
+        }
+        Object value = cache.get(tClass);
+        if (value != null)
+            return (T) value;
+
+        try {
+            // computeIfAbsent blocks concurrent observers until the first one decoded it
+            return (T) cache.computeIfAbsent(tClass, type -> {
+                try {
+                    return decodePayload(deserializer, tClass);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Read-only view of the payload, the bytes are not copied. An empty buffer if there is no payload.
+     * The view gives no access to the payload array, so Deserializer.deserialize(ByteBuffer, Class) copies it unless the
+     * deserializer reads buffers itself (e.g. DefaultDeserializer); decodePayload never copies.
+     * */
+    public ByteBuffer getPayloadBuffer() {
+        if (payload == null)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * Read-only view of a region of the payload (e.g. after a header), the bytes are not copied.
+     * Position 0 of the view is the offset in the payload.
+     *
+     * @exception IndexOutOfBoundsException if the region is not inside the payload
+     * */
+    public ByteBuffer getPayloadBuffer(int offset, int length) {
+        checkRegion(offset, length);
+        if (payload == null)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        return ByteBuffer.wrap(payload, offset, length).slice().asReadOnlyBuffer();
     }
 
+    /**
+     * Stream reading the payload, the bytes are not copied.
+     * */
+    public InputStream getPayloadStream() {
+        return payload == null ? new ByteArrayInputStream(new byte[0]) : new ByteArrayInputStream(payload);
+    }
+
+    /**
+     * Stream reading a region of the payload, the bytes are not copied.
+     *
+     * @exception IndexOutOfBoundsException if the region is not inside the payload
+     * */
+    public InputStream getPayloadStream(int offset, int length) {
+        checkRegion(offset, length);
+        return payload == null ? new ByteArrayInputStream(new byte[0]) : new ByteArrayInputStream(payload, offset, length);
+    }
+
+    /**
+     * Deserializes the payload, handing the payload array itself to the deserializer.
+     * */
+    public <T> T decodePayload(Deserializer deserializer, Class<T> tClass) throws IOException {
+        return decodePayload(0, payload == null ? 0 : payload.length, deserializer, tClass);
+    }
+
+    /**
+     * Deserializes a region of the payload (e.g. after a header), handing the payload array itself to the deserializer.
+     *
+     * @exception IndexOutOfBoundsException if the region is not inside the payload
+     * */
+    public <T> T decodePayload(int offset, int length, Deserializer deserializer, Class<T> tClass) throws IOException {
+        checkRegion(offset, length);
+        return deserializer.deserialize(payload == null ? new byte[0] : payload, offset, length, tClass);
+    }
+
+    private void checkRegion(int offset, int length) {
+        int size = payload == null ? 0 : payload.length;
+        if (offset < 0 || length < 0 || offset > size - length)
+            throw new IndexOutOfBoundsException("Region " + offset + "+" + length + " outside of a payload of " + size + " bytes");
+    }
+
+    /**
+     * Compact binary encoding of the message, see MqttMessageCodec.
+     * */
+    public byte[] toBinary() {
+        return MqttMessageCodec.encode(this);
+    }
+
+    /**
+     * Writes the compact binary encoding of the message in the buffer, see MqttMessageCodec.encode(MqttMessage, ByteBuffer).
+     * */
+    public void writeTo(ByteBuffer buffer) {
+        MqttMessageCodec.encode(this, buffer);
+    }
+
+    /**
+     * Java serialization of the message, for the agents not reading the binary encoding yet (see toBinary).
+     * */
     public  byte[] toBytes()  {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -76,7 +214,20 @@ public class MqttMessage implements Serializable {
         }
     }
 
+    /**
+     * Reads a message encoded by toBinary or serialized by toBytes.
+     *
+     * @return the message, null if the bytes are neither
+     * */
     public static MqttMessage deserialize(byte[] bytes)  {
+        if (MqttMessageCodec.isEncoded(bytes)) {
+            try {
+                return MqttMessageCodec.decode(bytes);
+            } catch (IllegalArgumentException e) {
+                LOG.error(e.getMessage(), e);
+                return null;
+            }
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
         ObjectInputStream in;
         Object o ;
@@ -0,0 +1,172 @@
+package eu.linksmart.services.utils.mqtt.types;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of MqttMessage, used to forward or persist messages instead of the Java serialization of
+ * MqttMessage.toBytes(). The encoding (version 1) is:
+ * <pre>
+ * magic (1 byte) | version (1 byte) | flags (1 byte) | sequence (zigzag varint)
+ * | [topic length (varint) | topic (UTF-8)] | [payload length (varint) | payload] | [origin (2 longs)]
+ * </pre>
+ * The flags contain QoS+1 (bits 0-1), retained (bit 2) and whether the topic, payload and origin are present (bits 3-5).
+ * Encoded messages never start as a Java serialization stream (0xACED), so both formats can be told apart (see isEncoded).
+ */
+public final class MqttMessageCodec {
+    public static final byte MAGIC = 0x4D, VERSION = 1;
+    private static final int RETAINED = 1 << 2, HAS_TOPIC = 1 << 3, HAS_PAYLOAD = 1 << 4, HAS_ORIGIN = 1 << 5;
+
+    private MqttMessageCodec() {
+    }
+
+    /**
+     * @return true if the bytes start as a message encoded by this codec
+     * */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length > 2 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * @return the number of bytes of the encoded message
+     * */
+    public static int sizeOf(MqttMessage message) {
+        return sizeOf(message, message.getTopic() != null ? message.getTopic().getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    public static byte[] encode(MqttMessage message) {
+        byte[] topic = message.getTopic() != null ? message.getTopic().getBytes(StandardCharsets.UTF_8) : null;
+        ByteBuffer buffer = ByteBuffer.allocate(sizeOf(message, topic));
+        write(message, topic, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the encoded message in the buffer starting at its position, the position is moved after the message.
+     *
+     * @exception java.nio.BufferOverflowException if the remaining bytes of the buffer are less than sizeOf(message), in
+     * such case the content and position of the buffer are undefined
+     * */
+    public static void encode(MqttMessage message, ByteBuffer buffer) {
+        write(message, message.getTopic() != null ? message.getTopic().getBytes(StandardCharsets.UTF_8) : null, buffer);
+    }
+
+    public static MqttMessage decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads an encoded message starting at the position of the buffer, the position is moved after the message.
+     * The payload is copied out of the buffer.
+     *
+     * @exception IllegalArgumentException if the bytes are not an encoded message or are truncated
+     * */
+    public static MqttMessage decode(ByteBuffer buffer) {
+        try {
+            if (buffer.get() != MAGIC)
+                throw new IllegalArgumentException("The bytes are not an encoded MqttMessage");
+            byte version = buffer.get();
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported MqttMessage encoding version " + version);
+
+            int flags = buffer.get();
+            long zigzag = readVarLong(buffer);
+            long sequence = (zigzag >>> 1) ^ -(zigzag & 1);
+
+            String topic = null;
+            if ((flags & HAS_TOPIC) != 0) {
+                byte[] bytes = new byte[readLength(buffer)];
+                buffer.get(bytes);
+                topic = new String(bytes, StandardCharsets.UTF_8);
+            }
+            byte[] payload = null;
+            if ((flags & HAS_PAYLOAD) != 0) {
+                payload = new byte[readLength(buffer)];
+                buffer.get(payload);
+            }
+            UUID origin = null;
+            if ((flags & HAS_ORIGIN) != 0)
+                origin = new UUID(buffer.getLong(), buffer.getLong());
+
+            return new MqttMessage(topic, payload, (flags & 3) - 1, (flags & RETAINED) != 0, sequence, origin);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("The encoded MqttMessage is truncated", e);
+        }
+    }
+
+    private static int sizeOf(MqttMessage message, byte[] topic) {
+        int size = 3 + varLongSize(zigzag(message.getSequence()));
+        if (topic != null)
+            size += varLongSize(topic.length) + topic.length;
+        if (message.getPayload() != null)
+            size += varLongSize(message.getPayload().length) + message.getPayload().length;
+        if (message.getOriginProtocol() != null)
+            size += 2 * Long.BYTES;
+        return size;
+    }
+
+    private static void write(MqttMessage message, byte[] topic, ByteBuffer buffer) {
+        if (message.getQoS() < -1 || message.getQoS() > 2)
+            throw new IllegalArgumentException("QoS " + message.getQoS() + " cannot be encoded");
+
+        byte[] payload = message.getPayload();
+        UUID origin = message.getOriginProtocol();
+        int flags = (message.getQoS() + 1)
+                | (message.isRetained() ? RETAINED : 0)
+                | (topic != null ? HAS_TOPIC : 0)
+                | (payload != null ? HAS_PAYLOAD : 0)
+                | (origin != null ? HAS_ORIGIN : 0);
+
+        buffer.put(MAGIC).put(VERSION).put((byte) flags);
+        writeVarLong(buffer, zigzag(message.getSequence()));
+        if (topic != null) {
+            writeVarLong(buffer, topic.length);
+            buffer.put(topic);
+        }
+        if (payload != null) {
+            writeVarLong(buffer, payload.length);
+            buffer.put(payload);
+        }
+        if (origin != null)
+            buffer.putLong(origin.getMostSignificantBits()).putLong(origin.getLeastSignificantBits());
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint in the encoded MqttMessage");
+    }
+
+    private static int readLength(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("The encoded MqttMessage is truncated");
+        return (int) length;
+    }
+}
@@ -2,17 +2,16 @@ package eu.linksmart.services.utils.mqtt.types;
 
 
 
-import java.util.*;
-import java.util.regex.Pattern;
-
 /**
  * Created by José Ángel Carvajal on 28.08.2015 a researcher of Fraunhofer FIT.
  */
 public class Topic {
+    private static final int MATCH_CACHE_SIZE = TopicMatchCache.getConfiguredCapacity();
     protected final String topic;
-    protected Set<String> knownAcceptedTopics = new HashSet<String>(),knownIgnoreTopics = new HashSet<String>();
+    // results of the comparisons with concrete topics, only used for wild topics
+    protected final TopicMatchCache knownTopics;
     protected String[] splitTopic;
-    protected Pattern wildTopic;
+    protected final TopicMatcher wildTopic;
     public boolean isWild() {
         return isWild;
     }
@@ -26,16 +25,24 @@ public class Topic {
     private Topic(){
         topic =null;
         isWild =false;
+        knownTopics = null;
+        wildTopic = null;
     }
 
     public Topic(String topic){
+        this(topic, MATCH_CACHE_SIZE);
+    }
+    /**
+     * @param topic topic or topic filter
+     * @param matchCacheSize max. number of concrete topics which comparison result is remembered
+     * */
+    public Topic(String topic, int matchCacheSize){
         this.topic = topic;
         isWild = (topic.contains("#")||topic.contains("+"));
+        knownTopics = isWild ? new TopicMatchCache(matchCacheSize) : null;
         splitTopic = topic.split("/");
 
-        //String ptr= topic.replace("/","/").replace("+","[^/]+").replace("/#","(/.+|/)?+$");
-        String ptr= topic.replace("/","/").replace("+","[^/]+").replace("#","(.+|/)?+$");
-        wildTopic = Pattern.compile(ptr);
+        wildTopic = isWild ? new TopicMatcher(topic) : null;
 
     }
     @Override
@@ -51,21 +58,24 @@ public class Topic {
             return false;
 
 
-        if(knownAcceptedTopics.contains(cmpTopic))
-            return true;
-        else if (knownIgnoreTopics.contains(cmpTopic))
-            return false;
+        Boolean known = knownTopics.get(cmpTopic);
+        if(known != null)
+            return known;
 
 
-        boolean equal = wildTopic.matcher(cmpTopic).matches();
+        boolean equal = wildTopic.matches(cmpTopic);
 
-        if(equal)
-            knownAcceptedTopics.add(cmpTopic);
-        else
-            knownIgnoreTopics.add(cmpTopic);
+        knownTopics.put(cmpTopic, equal);
 
         return equal;
     }
+
+    /**
+     * @return the cache of comparison results, null if the topic is not wild
+     * */
+    public TopicMatchCache getMatchCache() {
+        return knownTopics;
+    }
     public boolean equals(String cmpTopic){
        return cmp(cmpTopic);
 
@@ -0,0 +1,134 @@
+package eu.linksmart.services.utils.mqtt.types;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe cache of the match results of a wildcard Topic.
+ * The entries are kept in LRU order in a few lock-striped segments; when a segment is full its least recently used entry is evicted.
+ * Therefore the memory used per subscription is constant no matter how many distinct concrete topics are compared.
+ */
+public class TopicMatchCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int STRIPES = 4;
+
+    private final int capacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    /**
+     * @param capacity max. number of concrete topics remembered, 0 or less disables the cache
+     * */
+    public TopicMatchCache(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        int stripes = this.capacity >= STRIPES * 16 ? STRIPES : 1;
+        segments = new Segment[stripes];
+        // the remainder goes to the first segments, so all together hold exactly the capacity
+        for (int i = 0; i < stripes; i++)
+            segments[i] = new Segment(this.capacity / stripes + (i < this.capacity % stripes ? 1 : 0));
+    }
+
+    /**
+     * @return the capacity set by messaging_client_mqtt_topic_match_cache_size or DEFAULT_CAPACITY if it is not set
+     * */
+    public static int getConfiguredCapacity() {
+        Configurator conf = Configurator.getDefaultConfig();
+        if (conf.containsKeyAnywhere(BrokerServiceConst.TOPIC_MATCH_CACHE_SIZE))
+            return conf.getInt(BrokerServiceConst.TOPIC_MATCH_CACHE_SIZE);
+
+        return DEFAULT_CAPACITY;
+    }
+
+    /**
+     * @param topic concrete topic
+     * @return the cached result, or null if the topic is not cached
+     * */
+    public Boolean get(String topic) {
+        if (capacity == 0)
+            return null;
+
+        Segment segment = segmentFor(topic);
+        Boolean accepted;
+        synchronized (segment) {
+            accepted = segment.get(topic);
+        }
+        if (accepted != null)
+            hits.increment();
+        else
+            misses.increment();
+
+        return accepted;
+    }
+
+    public void put(String topic, boolean accepted) {
+        if (capacity == 0)
+            return;
+
+        Segment segment = segmentFor(topic);
+        synchronized (segment) {
+            segment.put(topic, accepted);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments)
+            synchronized (segment) {
+                segment.clear();
+            }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(String topic) {
+        if (segments.length == 1)
+            return segments[0];
+
+        int hash = topic.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private final class Segment extends LinkedHashMap<String, Boolean> {
+        private final int maxEntries;
+
+        private Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            if (size() > maxEntries) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package eu.linksmart.services.utils.mqtt.types;
+
+/**
+ * Compiled MQTT topic filter. The filter is split once in levels; matching a concrete topic is done in place
+ * over the topic string with index arithmetic, without regular expressions, splitting or any allocation.
+ *
+ * The matching follows the MQTT 3.1.1 rules: '+' matches exactly one (possibly empty) level, '#' matches the parent level
+ * and any number of child levels, and topics starting with '$' are not matched by filters starting with a wildcard.
+ */
+public final class TopicMatcher {
+    private static final char SEPARATOR = '/';
+    private static final String SINGLE_LEVEL = "+", MULTI_LEVEL = "#";
+
+    private final String filter;
+    private final String[] levels;
+    private final boolean startsWithWildcard;
+
+    public TopicMatcher(String filter) {
+        this.filter = filter;
+        this.levels = filter.split(String.valueOf(SEPARATOR), -1);
+        this.startsWithWildcard = SINGLE_LEVEL.equals(levels[0]) || MULTI_LEVEL.equals(levels[0]);
+    }
+
+    public boolean matches(String topic) {
+        if (startsWithWildcard && !topic.isEmpty() && topic.charAt(0) == '$')
+            return false;
+
+        final int length = topic.length();
+        int position = 0;
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+
+            // '#' at the end also matches the parent level, i.e. "a/#" matches "a"
+            if (MULTI_LEVEL.equals(level))
+                return true;
+
+            if (position > length)
+                return false; // the topic has less levels than the filter
+
+            int end = topic.indexOf(SEPARATOR, position);
+            if (end < 0)
+                end = length;
+
+            if (!SINGLE_LEVEL.equals(level) && (end - position != level.length() || !topic.regionMatches(position, level, 0, level.length())))
+                return false;
+
+            position = end + 1;
+        }
+
+        // all the filter levels were consumed, the topic must be consumed as well
+        return position > length;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return filter;
+    }
+}
@@ -12,8 +12,10 @@ import eu.linksmart.services.utils.constants.Const;
 import eu.linksmart.services.utils.function.Utils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -49,6 +51,25 @@ public class DefaultDeserializer implements Deserializer{
         return mapper.readValue(bytes, tClass);
     }
 
+    @Override
+    public <T> T deserialize(byte[] bytes, int offset, int length, Class<T> tClass) throws IOException {
+        return mapper.readValue(bytes, offset, length, tClass);
+    }
+
+    @Override
+    public <T> T deserialize(InputStream stream, Class<T> tClass) throws IOException {
+        return mapper.readValue(stream, tClass);
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuffer buffer, Class<T> tClass) throws IOException {
+        if (buffer.hasArray())
+            return deserialize(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), tClass);
+
+        // e.g. read-only or direct buffers, parsed as a stream without copying them
+        return mapper.readValue(new ByteBufferInputStream(buffer), tClass);
+    }
+
     @Override
     public <I,C extends I> boolean defineClassToInterface(Class<I> tInterface,Class<C>... tClass ) {
         Arrays.stream(tClass).forEach(t ->
@@ -20,7 +20,11 @@ package eu.linksmart.services.utils.serialization;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 /**
  * Interface hides the underlying deserialization or parsing technology used in the IoT Agents.
  * E.g. Jackson, Gson, Java serialization, etc.
@@ -68,6 +72,70 @@ public interface Deserializer {
      *
      * */
     <T> T deserialize(byte[] bytes, Class<T> tClass) throws IOException, UnsupportedOperationException;
+    /**
+     * Deserializes a region of an array of bytes, e.g. a part of an MQTT payload.
+     * The default implementation copies the region if it is not the whole array; implementations able to read the region in place should overwrite it.
+     *
+     * @param <T> type of the object to be deserialized
+     * @param bytes array containing the region
+     * @param offset of the first byte of the region
+     * @param length of the region
+     * @param tClass is the java class that will be constructing using the region
+     *
+     * @return the instantiation of the object obtained from the region.
+     *
+     * @exception java.io.IOException when the deserialization didn't work
+     * */
+    default <T> T deserialize(byte[] bytes, int offset, int length, Class<T> tClass) throws IOException, UnsupportedOperationException {
+        if (offset == 0 && length == bytes.length)
+            return deserialize(bytes, tClass);
+
+        return deserialize(Arrays.copyOfRange(bytes, offset, offset + length), tClass);
+    }
+    /**
+     * Deserializes the content of a stream, the stream is not closed.
+     * The default implementation reads the whole stream in memory first; implementations able to parse streams should overwrite it.
+     *
+     * @param <T> type of the object to be deserialized
+     * @param stream with the bytes of the object
+     * @param tClass is the java class that will be constructing using the stream
+     *
+     * @return the instantiation of the object obtained from the stream.
+     *
+     * @exception java.io.IOException when the deserialization or the reading of the stream didn't work
+     * */
+    default <T> T deserialize(InputStream stream, Class<T> tClass) throws IOException, UnsupportedOperationException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(stream.available(), 32));
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = stream.read(chunk)) >= 0)
+            bytes.write(chunk, 0, n);
+
+        return deserialize(bytes.toByteArray(), tClass);
+    }
+    /**
+     * Deserializes the remaining bytes of a buffer without changing its position.
+     * Buffers backed by an accessible array are read in place. The bytes of the others (e.g. the read-only views of
+     * MqttMessage.getPayloadBuffer or direct buffers) are copied once into an array; only implementations overwriting this
+     * method, as DefaultDeserializer does, read them without the copy. To decode a payload in place with any deserializer
+     * use MqttMessage.decodePayload instead.
+     *
+     * @param <T> type of the object to be deserialized
+     * @param buffer with the bytes of the object between its position and limit
+     * @param tClass is the java class that will be constructing using the buffer
+     *
+     * @return the instantiation of the object obtained from the buffer.
+     *
+     * @exception java.io.IOException when the deserialization didn't work
+     * */
+    default <T> T deserialize(ByteBuffer buffer, Class<T> tClass) throws IOException, UnsupportedOperationException {
+        if (buffer.hasArray())
+            return deserialize(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), tClass);
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return deserialize(bytes, tClass);
+    }
 
     <I,C extends I> boolean defineClassToInterface(Class<I> tInterface,Class<C>... tClass );
 
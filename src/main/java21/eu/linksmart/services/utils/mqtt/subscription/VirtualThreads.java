@@ -0,0 +1,21 @@
+package eu.linksmart.services.utils.mqtt.subscription;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, Java 21 version of the class (packaged in META-INF/versions/21 of the multi-release JAR).
+ */
+final class VirtualThreads {
+    private VirtualThreads(){
+        // static access only
+    }
+
+    static boolean isSupported(){
+        return true;
+    }
+
+    static Executor newThreadPerTaskExecutor(String namePrefix){
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix + "-", 0).factory());
+    }
+}
@@ -0,0 +1,78 @@
+package eu.linksmart.test.services.utils.benchmark;
+
+import eu.linksmart.services.utils.mqtt.subscription.BoundedMailbox;
+import eu.linksmart.services.utils.mqtt.subscription.Mailbox;
+import eu.linksmart.services.utils.mqtt.subscription.MqttMessageObserver;
+import eu.linksmart.services.utils.mqtt.subscription.QueueMailbox;
+import eu.linksmart.services.utils.mqtt.subscription.TopicMessageDeliverable;
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingest (addMessage) and registration (addObserver/deleteObserver/countObservers) throughput of a TopicMessageDeliverable
+ * while its own thread delivers to a slow observer. With the observers guarded by the deliverable monitor both groups
+ * were throttled by the observer; now they must be independent of slowObserverTokens.
+ * The default QueueMailbox shows the lock-free enqueue; it is unbounded, so the backlog left by the slow observer is
+ * dropped after each iteration (the heap is raised for it). The bounded mailbox, dropping the newest messages when
+ * full, is measured for comparison: it takes a lock on every enqueue.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DeliverableContentionBenchmark {
+
+    @Param({"0", "10000"})
+    public int slowObserverTokens;
+
+    @Param({"queue", "bounded"})
+    public String mailbox;
+
+    private TopicMessageDeliverable deliverable;
+    private final MqttMessage message = new MqttMessage("devices/1/temperature", "{\"ResultValue\":1}".getBytes(), 0, false, 0, UUID.randomUUID());
+    private final MqttMessageObserver registered = (topic, message) -> { };
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Mailbox box = "queue".equals(mailbox) ? new QueueMailbox() : new BoundedMailbox(1 << 16, 0, BoundedMailbox.OverflowPolicy.DROP_NEWEST, 0);
+        deliverable = new TopicMessageDeliverable("devices/1/temperature", null, box);
+        deliverable.addObserver((MqttMessageObserver) (topic, message) -> Blackhole.consumeCPU(slowObserverTokens));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        deliverable.setIsActive(false);
+        // drop the backlog and wake up the delivery thread so it can end
+        while (deliverable.getMailbox().poll() != null) ;
+        deliverable.addMessage(message);
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(2)
+    public void ingest() {
+        deliverable.addMessage(message);
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(1)
+    public int registration() {
+        deliverable.addObserver(registered);
+        deliverable.deleteObserver(registered);
+        return deliverable.countObservers();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeliverableContentionBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
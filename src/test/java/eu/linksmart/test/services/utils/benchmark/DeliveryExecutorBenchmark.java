@@ -0,0 +1,77 @@
+package eu.linksmart.test.services.utils.benchmark;
+
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryMode;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryPool;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryProfile;
+import eu.linksmart.services.utils.mqtt.subscription.MqttMessageObserver;
+import eu.linksmart.services.utils.mqtt.subscription.TopicMessageDeliverable;
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One message to each of 10k subscribed topics, delivered by platform threads (one per topic), the shared pool, or
+ * virtual threads (one per topic). The time of each operation is until the last observer received its message.
+ * VIRTUAL requires Java 21 and the multi-release JAR in the classpath (the classes folder does not contain the
+ * versioned classes), otherwise it falls back to platform threads and a warning is logged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xss256k"})
+public class DeliveryExecutorBenchmark {
+
+    @Param({"THREAD_PER_TOPIC", "POOLED", "VIRTUAL"})
+    public DeliveryMode mode;
+
+    @Param({"10000"})
+    public int topics;
+
+    private TopicMessageDeliverable[] deliverables;
+    private MqttMessage[] messages;
+    private final AtomicLong delivered = new AtomicLong();
+    private long sent = 0;
+
+    @Setup
+    public void setup() {
+        MqttMessageObserver observer = (topic, message) -> delivered.incrementAndGet();
+        deliverables = new TopicMessageDeliverable[topics];
+        messages = new MqttMessage[topics];
+        for (int i = 0; i < topics; i++) {
+            String topic = "devices/" + i + "/temperature";
+            deliverables[i] = new TopicMessageDeliverable(topic, mode, DeliveryProfile.getDefault(), DeliveryPool.getExecutorFactory());
+            deliverables[i].addObserver(observer);
+            messages[i] = new MqttMessage(topic, "{\"ResultValue\":1}".getBytes(), 0, false, i, UUID.randomUUID());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (TopicMessageDeliverable deliverable : deliverables)
+            deliverable.stop();
+    }
+
+    @Benchmark
+    public long deliverToAllTopics() {
+        for (int i = 0; i < topics; i++)
+            deliverables[i].addMessage(messages[i]);
+        sent += topics;
+
+        long received;
+        while ((received = delivered.get()) < sent)
+            Thread.yield();
+        return received;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeliveryExecutorBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
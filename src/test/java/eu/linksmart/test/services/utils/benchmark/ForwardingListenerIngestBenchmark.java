@@ -0,0 +1,67 @@
+package eu.linksmart.test.services.utils.benchmark;
+
+import eu.linksmart.services.utils.mqtt.subscription.ForwardingListener;
+import eu.linksmart.services.utils.mqtt.subscription.MqttMessageObserver;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of ForwardingListener.messageArrived (the paho callback thread) for already compiled topics.
+ * Run with the gc profiler (see main) and compare gc.alloc.rate.norm (bytes per message) between versions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingListenerIngestBenchmark {
+
+    @Param({"100"})
+    public int devices;
+
+    private ForwardingListener listener;
+    private String[] topics;
+    private final org.eclipse.paho.client.mqttv3.MqttMessage pahoMessage = new org.eclipse.paho.client.mqttv3.MqttMessage("{\"ResultValue\":1}".getBytes());
+    private final AtomicLong delivered = new AtomicLong();
+    private long sent = 0;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        listener = new ForwardingListener((o, arg) -> { }, UUID.randomUUID());
+        MqttMessageObserver observer = (topic, message) -> delivered.incrementAndGet();
+        topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            listener.addObserver("devices/" + i + "/#", observer);
+            topics[i] = "devices/" + i + "/sensors/temperature";
+            // compile the topic
+            listener.messageArrived(topics[i], pahoMessage);
+            sent++;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitDelivery() throws InterruptedException {
+        // do not let the queues of the deliverables grow across iterations
+        while (delivered.get() < sent)
+            Thread.sleep(1);
+    }
+
+    @Benchmark
+    public void messageArrived() {
+        listener.messageArrived(topics[next], pahoMessage);
+        next = (next + 1) % topics.length;
+        sent++;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ForwardingListenerIngestBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
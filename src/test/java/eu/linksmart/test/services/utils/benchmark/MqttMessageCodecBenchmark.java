@@ -0,0 +1,76 @@
+package eu.linksmart.test.services.utils.benchmark;
+
+import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import eu.linksmart.services.utils.mqtt.types.MqttMessageCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a MqttMessage with Java serialization (toBytes/deserialize) against the binary codec
+ * (toBinary/MqttMessageCodec), including the encoding into a reused direct buffer. The gc profiler shows the
+ * allocations per operation; the encoded sizes are printed at the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttMessageCodecBenchmark {
+
+    @Param({"32", "1024", "65536"})
+    public int payloadSize;
+
+    private MqttMessage message;
+    private byte[] serialized, encoded;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        message = new MqttMessage("devices/1/temperature", payload, 1, false, 123456, UUID.randomUUID());
+        serialized = message.toBytes();
+        encoded = message.toBinary();
+        buffer = ByteBuffer.allocateDirect(encoded.length);
+        System.out.println("\nJava serialization: " + serialized.length + " bytes, binary codec: " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] javaEncode() {
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public MqttMessage javaDecode() {
+        return MqttMessage.deserialize(serialized);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return message.toBinary();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncodeInBuffer() {
+        buffer.clear();
+        message.writeTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public MqttMessage binaryDecode() {
+        return MqttMessageCodec.decode(encoded);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MqttMessageCodecBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
@@ -0,0 +1,61 @@
+package eu.linksmart.test.services.utils.benchmark;
+
+import eu.linksmart.services.utils.mqtt.types.TopicMatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the compiled TopicMatcher used by Topic.cmp with the regular expression Topic used before.
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=eu.linksmart.test.services.utils.benchmark.TopicMatchBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicMatchBenchmark {
+
+    @Param({"devices/+/sensors/#", "a/b/+/d", "#"})
+    public String filter;
+
+    private final String[] topics = {
+            "devices/0f3a9c/sensors/temperature",
+            "devices/0f3a9c/actuators/valve/1",
+            "a/b/c/d",
+            "a/b/c/d/e",
+            "LS/v2/DA/47a1b7a0-4bfa-4b3c-8ff5-fc8b1e8c2c9e/OGC/1.0/Datastreams/1"
+    };
+
+    private Pattern regex;
+    private TopicMatcher matcher;
+
+    @Setup
+    public void setup() {
+        // the conversion done by Topic before the compiled matcher
+        regex = Pattern.compile(filter.replace("/", "/").replace("+", "[^/]+").replace("#", "(.+|/)?+$"));
+        matcher = new TopicMatcher(filter);
+    }
+
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        for (String topic : topics)
+            blackhole.consume(regex.matcher(topic).matches());
+    }
+
+    @Benchmark
+    public void compiledMatcher(Blackhole blackhole) {
+        for (String topic : topics)
+            blackhole.consume(matcher.matches(topic));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TopicMatchBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+    }
+}
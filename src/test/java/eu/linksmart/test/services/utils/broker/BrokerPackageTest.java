@@ -0,0 +1,470 @@
+package eu.linksmart.test.services.utils.broker;
+
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerService;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+import eu.linksmart.services.utils.mqtt.broker.PublishPipeline;
+import eu.linksmart.services.utils.mqtt.broker.PublishWindow;
+import eu.linksmart.services.utils.mqtt.broker.TopicSubscriptions;
+import eu.linksmart.services.utils.mqtt.subscription.MqttMessageObserver;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the publishing and subscribing machinery of the broker package.
+ */
+public class BrokerPackageTest {
+    public static final String topic = "topic1";
+    public static final byte[] message = "world".getBytes();
+
+    // clients created by the StubBrokerService(s), by client id
+    private final Map<String, StubClient> clients = new ConcurrentHashMap<>();
+    @Test
+    public void publishWindowTest() throws Exception {
+        PublishWindow window = new PublishWindow(2);
+        // a synchronous publication holds a slot as well
+        window.acquire();
+        CompletableFuture<Void> async = new CompletableFuture<>(), rejected = new CompletableFuture<>();
+        assertTrue(window.tryAcquire(async));
+        assertEquals(2, window.getPending());
+
+        // the window is full, the asynchronous publication fails without waiting
+        assertFalse(window.tryAcquire(rejected));
+        try {
+            rejected.get();
+            fail("the window is full");
+        } catch (ExecutionException e) {
+            assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, ((MqttException) e.getCause()).getReasonCode());
+        }
+
+        // completing the publications releases their slots
+        window.completing(async).onSuccess(null);
+        assertTrue(async.isDone() && !async.isCompletedExceptionally());
+        window.release();
+        assertEquals(0, window.getPending());
+
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        assertTrue(window.tryAcquire(failed));
+        window.completing(failed).onFailure(null, new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, window.getPending());
+    }
+    @Test
+    public void publishPipelineTest() throws Exception {
+        final int n = 1000, topics = 4;
+        Map<String, List<Integer>> sent = new ConcurrentHashMap<>();
+        PublishPipeline pipeline = new PublishPipeline("test-publisher", publication -> {
+            sent.computeIfAbsent(publication.getTopic(), t -> Collections.synchronizedList(new ArrayList<>())).add((int) publication.getPayload()[0]);
+            publication.getFuture().complete(null);
+        }, n * topics);
+
+        // each publisher keeps the order of its topic
+        Thread[] publishers = new Thread[topics];
+        for (int t = 0; t < topics; t++) {
+            final String topic = "devices/" + t;
+            publishers[t] = new Thread(() -> {
+                byte[] payload = new byte[1];
+                for (int i = 0; i < n; i++) {
+                    payload[0] = (byte) i;
+                    // the array is reused, the pipeline keeps a copy
+                    pipeline.enqueue(topic, payload, 0, false);
+                }
+            });
+            publishers[t].start();
+        }
+        for (Thread publisher : publishers)
+            publisher.join();
+        assertTrue(pipeline.stop(10, TimeUnit.SECONDS));
+        assertEquals(topics, sent.size());
+        for (List<Integer> payloads : sent.values()) {
+            assertEquals(n, payloads.size());
+            for (int i = 0; i < n; i++)
+                assertEquals((int) (byte) i, (int) payloads.get(i));
+        }
+        assertEquals(n * topics, pipeline.getSent());
+        assertEquals(0, pipeline.getQueueDepth());
+
+        // the queue is bounded, a full queue fails at once; the sender takes the waiting publications together
+        CountDownLatch taken = new CountDownLatch(1), resume = new CountDownLatch(1);
+        PublishPipeline slow = new PublishPipeline("test-slow-publisher", publication -> {
+            taken.countDown();
+            resume.await();
+            publication.getFuture().complete(null);
+        }, 2);
+        CompletableFuture<Void> first = slow.enqueue(topic, message, 0, false);
+        assertTrue(taken.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> second = slow.enqueue(topic, message, 0, false), third = slow.enqueue(topic, message, 0, false),
+                rejected = slow.enqueue(topic, message, 0, false);
+        assertEquals(2, slow.getQueueDepth());
+        assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, reasonOf(rejected));
+        assertEquals(1, slow.getRejected());
+        resume.countDown();
+        CompletableFuture.allOf(first, second, third).get(10, TimeUnit.SECONDS);
+        // the metrics are updated after sending, they are read once the sender is stopped
+        assertTrue(slow.stop(10, TimeUnit.SECONDS));
+        assertEquals(3, slow.getMaxBatchSize());
+
+        // stop() waits for the enqueued publications, the ones not sent before the timeout fail
+        CountDownLatch blocked = new CountDownLatch(1);
+        PublishPipeline stuck = new PublishPipeline("test-stuck-publisher", publication -> {
+            blocked.countDown();
+            new CountDownLatch(1).await();
+        }, 10);
+        CompletableFuture<Void> inFlight = stuck.enqueue(topic, message, 0, false);
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> queued = stuck.enqueue(topic, message, 0, false);
+        assertFalse(stuck.stop(100, TimeUnit.MILLISECONDS));
+        assertEquals(MqttException.REASON_CODE_CLIENT_CLOSED, reasonOf(queued));
+        assertEquals(MqttException.REASON_CODE_CLIENT_CLOSED, reasonOf(inFlight));
+        assertEquals(MqttException.REASON_CODE_CLIENT_CLOSED, reasonOf(stuck.enqueue(topic, message, 0, false)));
+    }
+    private static int reasonOf(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return ((MqttException) e.getCause()).getReasonCode();
+        }
+        fail("the publication must fail");
+        return 0;
+    }
+    @Test
+    public void topicSubscriptionsTest() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        List<String> unsubscribed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch sending = new CountDownLatch(1), acknowledge = new CountDownLatch(1);
+        TopicSubscriptions subscriptions = new TopicSubscriptions(new TopicSubscriptions.Subscriber() {
+            @Override
+            public void subscribe(List<String> filters, List<Integer> qos) throws Exception {
+                sent.add(filters + "" + qos);
+                if(filters.contains("x"))
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                sending.countDown();
+                assertTrue(acknowledge.await(10, TimeUnit.SECONDS));
+            }
+
+            @Override
+            public boolean unsubscribe(String filter) {
+                unsubscribed.add(filter);
+                return true;
+            }
+        }, () -> 0);
+
+        // the registrations arriving while the first SUBSCRIBE waits for its ack are grouped in the next one
+        List<Thread> registrations = new ArrayList<>();
+        registrations.add(subscribing(subscriptions, "a", 0));
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        registrations.add(subscribing(subscriptions, "b", 1));
+        registrations.add(subscribing(subscriptions, "c", 0));
+        // already on its way with the same QoS, it waits for the first SUBSCRIBE
+        registrations.add(subscribing(subscriptions, "a", 0));
+        // a higher QoS subscribes the filter again
+        registrations.add(subscribing(subscriptions, "a", 1));
+        acknowledge.countDown();
+        for (Thread registration : registrations)
+            registration.join(10000);
+
+        assertEquals(Arrays.asList("[a][0]", "[b, c, a][1, 0, 1]"), sent);
+        assertEquals(Arrays.asList("a", "b", "c"), subscriptions.getFilters());
+        assertEquals(Integer.valueOf(1), subscriptions.getQoS("a"));
+
+        // already subscribed with the same or a higher QoS
+        subscriptions.subscribe("b", 0);
+        subscriptions.subscribe("c", 0);
+        assertEquals(2, sent.size());
+
+        // a failed SUBSCRIBE is reported to the registrant and sent again by the next one
+        for (int i = 0; i < 2; i++)
+            try {
+                subscriptions.subscribe("x", 0);
+                fail("the SUBSCRIBE fails");
+            } catch (MqttException e) {
+                assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, e.getReasonCode());
+            }
+        assertEquals(4, sent.size());
+        assertNull(subscriptions.getQoS("x"));
+
+        // only the unused filters are unsubscribed, and only once
+        assertFalse(subscriptions.unsubscribe("b", () -> false));
+        assertTrue(subscriptions.unsubscribe("b", () -> true));
+        assertFalse(subscriptions.unsubscribe("b", () -> true));
+        assertEquals(Collections.singletonList("b"), unsubscribed);
+        assertEquals(Arrays.asList("a", "c"), subscriptions.getFilters());
+
+        // only the filters of the lost connections are subscribed again
+        subscriptions.resubscribe("c"::equals);
+        assertEquals("[c][0]", sent.get(sent.size() - 1));
+    }
+    @Test
+    public void topicSubscriptionsLingerTest() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        TopicSubscriptions subscriptions = new TopicSubscriptions(new TopicSubscriptions.Subscriber() {
+            @Override
+            public void subscribe(List<String> filters, List<Integer> qos) {
+                sent.add(filters + "" + qos);
+            }
+
+            @Override
+            public boolean unsubscribe(String filter) {
+                return true;
+            }
+        }, () -> 2000);
+
+        // the registration arriving during the linger joins the batch
+        Thread a = subscribing(subscriptions, "a", 0), b = subscribing(subscriptions, "b", 0);
+        // the lingering batch does not hold back the other packets
+        long start = System.nanoTime();
+        subscriptions.retryUnsubscribes();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+
+        a.join(10000);
+        b.join(10000);
+        assertEquals(Collections.singletonList("[a, b][0, 0]"), sent);
+    }
+    @Test
+    public void topicUnsubscribeTest() throws Exception {
+        List<String> sent = new ArrayList<>(), unsubscribed = new ArrayList<>();
+        AtomicInteger connection = new AtomicInteger(0);
+        TopicSubscriptions subscriptions = new TopicSubscriptions(new TopicSubscriptions.Subscriber() {
+            @Override
+            public void subscribe(List<String> filters, List<Integer> qos) {
+                sent.addAll(filters);
+            }
+
+            @Override
+            public boolean unsubscribe(String filter) throws Exception {
+                // 0 disconnected, 1 connected, otherwise the UNSUBSCRIBE fails
+                if(connection.get() > 1)
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                if(connection.get() == 1)
+                    unsubscribed.add(filter);
+                return connection.get() == 1;
+            }
+        }, () -> 0);
+        for (String filter : Arrays.asList("a", "b", "c"))
+            subscriptions.subscribe(filter, 0);
+
+        // disconnected, the filters are forgotten and their UNSUBSCRIBE waits for the connection
+        assertTrue(subscriptions.unsubscribe("a", () -> true));
+        assertTrue(subscriptions.unsubscribe("b", () -> true));
+        assertEquals(Collections.singletonList("c"), subscriptions.getFilters());
+        assertEquals(Arrays.asList("a", "b"), subscriptions.getPendingUnsubscribes());
+
+        // registered again before reconnecting, it must stay subscribed
+        subscriptions.subscribe("b", 0);
+        assertEquals(Arrays.asList("a", "b", "c", "b"), sent);
+        assertEquals(Collections.singletonList("a"), subscriptions.getPendingUnsubscribes());
+
+        subscriptions.retryUnsubscribes();
+        assertTrue(unsubscribed.isEmpty());
+        connection.set(1);
+        subscriptions.retryUnsubscribes();
+        assertEquals(Collections.singletonList("a"), unsubscribed);
+        assertTrue(subscriptions.getPendingUnsubscribes().isEmpty());
+
+        // a failed UNSUBSCRIBE is reported and sent again as well
+        connection.set(2);
+        try {
+            subscriptions.unsubscribe("c", () -> true);
+            fail("the UNSUBSCRIBE fails");
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, e.getReasonCode());
+        }
+        assertEquals(Collections.singletonList("c"), subscriptions.getPendingUnsubscribes());
+        connection.set(1);
+        subscriptions.retryUnsubscribes();
+        assertEquals(Arrays.asList("a", "c"), unsubscribed);
+        assertEquals(Collections.singletonList("b"), subscriptions.getFilters());
+    }
+    private static Thread subscribing(TopicSubscriptions subscriptions, String filter, int qos) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                subscriptions.subscribe(filter, qos);
+            } catch (Exception e) {
+                fail(e.getMessage());
+            }
+        });
+        thread.start();
+        // waiting for the SUBSCRIBE on its way, so the registrations join the batch in order
+        while (thread.getState() == Thread.State.NEW || thread.getState() == Thread.State.RUNNABLE)
+            Thread.sleep(1);
+        return thread;
+    }
+    @Test
+    public void publishConnectionTest() throws Exception {
+        StubBrokerService service = new StubBrokerService(alias(3, 1));
+        assertEquals(3, service.getPublishConnections());
+
+        // the same topic always uses the same connection, the topics are spread over all of them
+        Map<String, Set<String>> connections = new HashMap<>();
+        for (int i = 0; i < 2; i++)
+            for (int t = 0; t < 64; t++) {
+                service.publish("devices/" + t, message, 0, false);
+                for (StubClient client : clients.values())
+                    for (String topic : client.published)
+                        connections.computeIfAbsent(topic, k -> new HashSet<>()).add(client.getClientId());
+            }
+        assertEquals(64, connections.size());
+        Set<String> used = new HashSet<>();
+        for (Set<String> connection : connections.values()) {
+            assertEquals(1, connection.size());
+            used.addAll(connection);
+        }
+        assertEquals(3, used.size());
+        service.destroy();
+    }
+    @Test
+    public void publishReconnectTest() throws Exception {
+        StubBrokerService service = new StubBrokerService(alias(2, 1));
+        AtomicInteger reconnected = new AtomicInteger();
+        service.addConnectionListener((o, arg) -> reconnected.incrementAndGet());
+        StubClient main = clients.get(service.getConfiguration().getId()), publisher = clients.get(service.getConfiguration().getId() + "-pub1");
+        assertTrue(main.isConnected() && publisher.isConnected());
+
+        // the publish-only connection is lost, only that one is connected again
+        publisher.connected = false;
+        publisher.callback.connectionLost(new Exception("lost"));
+        assertTrue(publisher.isConnected());
+        assertEquals(2, publisher.connects.get());
+        assertEquals(1, main.connects.get());
+        assertEquals(1, reconnected.get());
+        assertTrue(main.subscribed.isEmpty());
+        service.destroy();
+    }
+    @Test
+    public void resubscribeLostConnectionTest() throws Exception {
+        StubBrokerService service = new StubBrokerService(alias(1, 3));
+        assertEquals(3, service.getSubscribeConnections());
+        MqttMessageObserver observer = (topic, message) -> { };
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            filters.add("devices/" + i + "/#");
+            assertTrue(service.addListener(filters.get(i), observer));
+        }
+
+        // each filter is subscribed through one connection
+        Map<String, String> connectionOf = new HashMap<>();
+        for (StubClient client : clients.values())
+            for (String filter : client.subscribed)
+                assertNull(connectionOf.put(filter, client.getClientId()));
+        assertEquals(new HashSet<>(filters), connectionOf.keySet());
+
+        String lostId = service.getConfiguration().getId() + "-sub1";
+        Set<String> expected = new HashSet<>();
+        connectionOf.forEach((filter, id) -> {
+            if (id.equals(lostId))
+                expected.add(filter);
+        });
+        assertFalse(expected.isEmpty());
+        for (StubClient client : clients.values())
+            client.subscribed.clear();
+
+        // only the filters of the lost connection are subscribed again, through the same connection
+        StubClient lost = clients.get(lostId);
+        lost.connected = false;
+        lost.callback.connectionLost(new Exception("lost"));
+        assertTrue(lost.isConnected());
+        assertEquals(expected, new HashSet<>(lost.subscribed));
+        assertEquals(expected.size(), lost.subscribed.size());
+        for (StubClient client : clients.values())
+            if (client != lost)
+                assertTrue(client.subscribed.isEmpty());
+        service.destroy();
+    }
+
+    /**
+     * @return a new broker alias with the given connections, the other settings are the default ones
+     * */
+    private static String alias(int publishConnections, int subscribeConnections) {
+        String alias = "stub" + UUID.randomUUID().toString().replace("-", "");
+        Configurator conf = Configurator.getDefaultConfig();
+        conf.setSetting(BrokerServiceConst.PUBLISH_CONNECTIONS + "_" + alias, publishConnections);
+        conf.setSetting(BrokerServiceConst.SUBSCRIBE_CONNECTIONS + "_" + alias, subscribeConnections);
+        conf.setSetting(BrokerServiceConst.PUBLISH_MODE + "_" + alias, "DIRECT");
+        conf.setSetting(BrokerServiceConst.RECONNECTION_TRY + "_" + alias, 3);
+        return alias;
+    }
+
+    /**
+     * BrokerService connected to StubClient(s) instead of a broker.
+     * */
+    private class StubBrokerService extends BrokerService {
+        StubBrokerService(String alias) throws MqttException {
+            super(alias, UUID.randomUUID(), null, null);
+        }
+
+        @Override
+        protected MqttClient newClient(String clientId) throws MqttException {
+            StubClient client = new StubClient(clientId);
+            clients.put(clientId, client);
+            return client;
+        }
+    }
+
+    /**
+     * Client recording the packets instead of sending them, its connection is lost by setting connected to false.
+     * */
+    private static class StubClient extends MqttClient {
+        final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        final List<String> subscribed = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger connects = new AtomicInteger();
+        volatile boolean connected = false;
+        volatile MqttCallback callback;
+
+        StubClient(String clientId) throws MqttException {
+            super("tcp://localhost:1883", clientId, new MemoryPersistence());
+        }
+
+        @Override
+        public void connect(MqttConnectOptions options) {
+            connects.incrementAndGet();
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void setCallback(MqttCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void subscribe(String[] topicFilters, int[] qos) {
+            subscribed.addAll(Arrays.asList(topicFilters));
+        }
+
+        @Override
+        public void unsubscribe(String topicFilter) {
+        }
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos, boolean retained) {
+            published.add(topic);
+        }
+    }
+}
@@ -1,16 +1,42 @@
 package eu.linksmart.test.services.utils.serialization;
 
+import eu.linksmart.services.utils.configuration.Configurator;
+import eu.linksmart.services.utils.mqtt.broker.BrokerServiceConst;
+import eu.linksmart.services.utils.mqtt.subscription.BatchMqttMessageObserver;
+import eu.linksmart.services.utils.mqtt.subscription.BoundedMailbox;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryExecutorFactory;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryMode;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryPool;
+import eu.linksmart.services.utils.mqtt.subscription.DeliveryProfile;
+import eu.linksmart.services.utils.mqtt.subscription.DuplicateFilter;
 import eu.linksmart.services.utils.mqtt.subscription.ForwardingListener;
+import eu.linksmart.services.utils.mqtt.subscription.KeyExtractor;
+import eu.linksmart.services.utils.mqtt.subscription.KeyPartitionedObserver;
+import eu.linksmart.services.utils.mqtt.subscription.RingBufferMailbox;
+import eu.linksmart.services.utils.mqtt.subscription.ShardedDispatcher;
 import eu.linksmart.services.utils.mqtt.subscription.MqttMessageObserver;
+import eu.linksmart.services.utils.mqtt.subscription.QueueMailbox;
 import eu.linksmart.services.utils.mqtt.subscription.TopicMessageDeliverable;
+import eu.linksmart.services.utils.mqtt.subscription.TopicTrie;
+import eu.linksmart.services.utils.mqtt.subscription.TypedMqttMessageObserver;
 import eu.linksmart.services.utils.mqtt.types.MqttMessage;
+import eu.linksmart.services.utils.mqtt.types.MqttMessageCodec;
 import eu.linksmart.services.utils.mqtt.types.Topic;
+import eu.linksmart.services.utils.mqtt.types.TopicMatchCache;
+import eu.linksmart.services.utils.mqtt.types.TopicMatcher;
+import eu.linksmart.services.utils.serialization.DefaultDeserializer;
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.Test;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -49,6 +75,428 @@ public class MqttPackageTest {
         assertEquals(0, tmp.countObservers());
     }
     @Test
+    public void topicMessageDeliverablePooledTest(){
+        final int n = 10000;
+        ExecutorService executor = DeliveryPool.newExecutor(2, "test-delivery");
+        TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, executor), tmp2 = new TopicMessageDeliverable(topic2, executor);
+        OrderObserver observer = new OrderObserver(), observer2 = new OrderObserver();
+        tmp.addObserver(observer);
+        tmp2.addObserver(observer2);
+
+        for (int i = 0; i < n; i++) {
+            tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+            tmp2.addMessage(new MqttMessage(topic2, message, 0, false, i, UUID.randomUUID()));
+        }
+        assertTrue(tmp.drain(10, TimeUnit.SECONDS) && tmp2.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, observer.received.get());
+        assertEquals(n, observer2.received.get());
+        assertEquals(true, observer.ordered && observer2.ordered);
+        executor.shutdown();
+    }
+    @Test
+    public void batchTopicTest(){
+        ExecutorService executor = DeliveryPool.newExecutor(1, "test-batch-topic");
+        TopicMessageDeliverable single = new TopicMessageDeliverable("a/+", executor, new QueueMailbox(), 1, 0),
+                batched = new TopicMessageDeliverable("a/+", executor, new QueueMailbox(), 10, 0);
+        BatchObserver observer = new BatchObserver(1), observer2 = new BatchObserver(10);
+        single.addObserver(observer);
+        batched.addObserver(observer2);
+
+        for (int i = 0; i < 100; i++) {
+            single.addMessage(new MqttMessage("a/b", message, 0, false, i, UUID.randomUUID()));
+            batched.addMessage(new MqttMessage("a/b", message, 0, false, i, UUID.randomUUID()));
+        }
+        assertTrue(single.drain(10, TimeUnit.SECONDS) && batched.drain(10, TimeUnit.SECONDS));
+        // with or without batching the observer receives the filter of the subscription
+        assertEquals(Collections.singleton("a/+"), observer.topics);
+        assertEquals(Collections.singleton("a/+"), observer2.topics);
+        single.stop();
+        batched.stop();
+        executor.shutdown();
+    }
+    @Test
+    public void ringBufferMailboxTest(){
+        final int n = 10000;
+        // small rings, so the producer waits for the consumer many times
+        ExecutorService executor = DeliveryPool.newExecutor(1, "test-ring");
+        TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, null, new RingBufferMailbox(16, RingBufferMailbox.WaitStrategy.BLOCKING)),
+                tmp2 = new TopicMessageDeliverable(topic2, executor, new RingBufferMailbox(16, RingBufferMailbox.WaitStrategy.BLOCKING));
+        OrderObserver observer = new OrderObserver(), observer2 = new OrderObserver();
+        tmp.addObserver(observer);
+        tmp2.addObserver(observer2);
+
+        for (int i = 0; i < n; i++) {
+            tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+            tmp2.addMessage(new MqttMessage(topic2, message, 0, false, i, UUID.randomUUID()));
+        }
+        assertTrue(tmp.drain(10, TimeUnit.SECONDS) && tmp2.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, observer.received.get());
+        assertEquals(n, observer2.received.get());
+        assertEquals(true, observer.ordered && observer2.ordered);
+        executor.shutdown();
+
+        // several producers, nothing lost nor duplicated
+        RingBufferMailbox mailbox = new RingBufferMailbox(10, RingBufferMailbox.WaitStrategy.YIELDING);
+        assertEquals(16, mailbox.getCapacity());
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < n; i++)
+                    try {
+                        mailbox.put(new MqttMessage(topic, message, 0, false, producer * n + i, UUID.randomUUID()));
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+            });
+            producers[p].start();
+        }
+        BitSet consumed = new BitSet(producers.length * n);
+        try {
+            for (int i = 0; i < producers.length * n; i++) {
+                int sequence = (int) mailbox.take().getSequence();
+                assertFalse(consumed.get(sequence));
+                consumed.set(sequence);
+            }
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertEquals(producers.length * n, consumed.cardinality());
+        assertTrue(mailbox.isEmpty());
+    }
+    @Test
+    public void boundedMailboxTest(){
+        BoundedMailbox newest = new BoundedMailbox(2, 0, BoundedMailbox.OverflowPolicy.DROP_NEWEST, 0),
+                oldest = new BoundedMailbox(2, 0, BoundedMailbox.OverflowPolicy.DROP_OLDEST, 0),
+                bytes = new BoundedMailbox(0, 2 * message.length, BoundedMailbox.OverflowPolicy.DROP_NEWEST, 0),
+                block = new BoundedMailbox(2, 0, BoundedMailbox.OverflowPolicy.BLOCK, 0),
+                ttl = new BoundedMailbox(0, 0, BoundedMailbox.OverflowPolicy.TTL, 50);
+        for (int i = 0; i < 3; i++) {
+            MqttMessage mqttMessage = new MqttMessage(topic, message, 0, false, i, UUID.randomUUID());
+            newest.offer(mqttMessage);
+            oldest.offer(mqttMessage);
+            bytes.offer(mqttMessage);
+            assertEquals(i < 2, block.offer(mqttMessage));
+            ttl.offer(mqttMessage);
+        }
+        assertEquals(2, newest.size());
+        assertEquals(1, newest.getDroppedNewest());
+        assertEquals(0, newest.poll().getSequence());
+        assertEquals(2, oldest.size());
+        assertEquals(1, oldest.getDroppedOldest());
+        assertEquals(1, oldest.poll().getSequence());
+        assertEquals(2, bytes.size());
+        assertEquals(2 * message.length, bytes.getBytes());
+        assertEquals(1, bytes.getDropped());
+        assertEquals(2, block.size());
+        assertEquals(0, block.getDropped());
+        assertEquals(3, ttl.size());
+        silentSleep(100);
+        assertNull(ttl.poll());
+        assertEquals(3, ttl.getExpired());
+
+        // a blocked producer continues as soon as the deliverable consumes
+        Thread producer = new Thread(() -> {
+            try {
+                block.put(new MqttMessage(topic, message, 0, false, 3, UUID.randomUUID()));
+            } catch (InterruptedException e) {
+                fail();
+            }
+        });
+        producer.start();
+        // waiting for space in the full mailbox
+        while (producer.getState() != Thread.State.WAITING && producer.isAlive())
+            Thread.yield();
+        assertEquals(2, block.size());
+        assertEquals(0, block.poll().getSequence());
+        try {
+            producer.join(1000);
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertFalse(producer.isAlive());
+        assertEquals(2, block.size());
+    }
+    @Test
+    public void batchDeliveryTest(){
+        final int n = 10000, batchSize = 10;
+        ExecutorService executor = DeliveryPool.newExecutor(1, "test-batch");
+        TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, executor, new QueueMailbox(), batchSize, 0),
+                tmp2 = new TopicMessageDeliverable(topic2, null, new QueueMailbox(), batchSize, 10);
+        BatchObserver observer = new BatchObserver(batchSize), observer2 = new BatchObserver(batchSize);
+        OrderObserver single = new OrderObserver();
+        tmp.addObserver(observer);
+        tmp.addObserver(single);
+        tmp2.addObserver(observer2);
+
+        for (int i = 0; i < n; i++) {
+            tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+            tmp2.addMessage(new MqttMessage(topic2, message, 0, false, i, UUID.randomUUID()));
+        }
+        assertTrue(tmp.drain(10, TimeUnit.SECONDS) && tmp2.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, observer.received.get());
+        assertEquals(n, observer2.received.get());
+        assertEquals(n, single.received.get());
+        assertTrue(observer.ordered && observer2.ordered && single.ordered);
+        assertTrue(observer.sized && observer2.sized);
+        // the linger waits for the following messages, so they are batched
+        assertTrue(observer2.batches.get() < n);
+        executor.shutdown();
+    }
+    @Test
+    public void slowObserverTest(){
+        TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, null, new QueueMailbox());
+        OrderObserver observer = new OrderObserver();
+        Object gate = new Object();
+        // blocks the delivery thread inside update
+        tmp.addObserver((MqttMessageObserver) (t, m) -> {
+            synchronized (gate) {
+                observer.update(t, m);
+            }
+        });
+
+        Instant start = Instant.now();
+        synchronized (gate) {
+            for (int i = 0; i < 1000; i++) {
+                tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+                tmp.addObserver(new OrderObserver());
+            }
+            assertEquals(1001, tmp.countObservers());
+            // ingest and registration did not wait for the blocked observer
+            assertTrue(Duration.between(start, Instant.now()).toMillis() < 5000);
+        }
+        assertTrue(tmp.drain(10, TimeUnit.SECONDS));
+        assertEquals(1000, observer.received.get());
+        assertTrue(observer.ordered);
+    }
+    @Test
+    public void deliverableLifecycleTest(){
+        final int n = 1000;
+        int live = TopicMessageDeliverable.getLiveDeliverables();
+        TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, null, new QueueMailbox()),
+                tmp2 = new TopicMessageDeliverable(topic2, DeliveryPool.getSharedExecutor(), new QueueMailbox());
+        assertTrue(tmp.isActive() && tmp2.isActive());
+        OrderObserver observer = new OrderObserver(), observer2 = new OrderObserver();
+        tmp.addObserver(observer);
+        tmp2.addObserver(observer2);
+        for (int i = 0; i < n; i++) {
+            tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+            tmp2.addMessage(new MqttMessage(topic2, message, 0, false, i, UUID.randomUUID()));
+        }
+        assertTrue(tmp.drain(10, TimeUnit.SECONDS) && tmp2.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, observer.received.get());
+        assertEquals(n, observer2.received.get());
+
+        tmp.stop();
+        tmp2.stop();
+        assertFalse(tmp.isActive() || tmp2.isActive());
+        // other deliverables may be finalized meanwhile, the gauge can only be lower
+        assertTrue(TopicMessageDeliverable.getLiveDeliverables() <= live);
+        tmp.addMessage(new MqttMessage(topic, message, 0, false, n, UUID.randomUUID()));
+        silentSleep(100);
+        assertEquals(n, observer.received.get());
+
+        // removing the last observer of a topic releases its deliverable
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID());
+        forwardingListener.addObserver(topic, observer);
+        forwardingListener.addObserver(topic2, observer2);
+        live = TopicMessageDeliverable.getLiveDeliverables();
+        assertTrue(forwardingListener.removeObserver(topic, observer));
+        assertTrue(TopicMessageDeliverable.getLiveDeliverables() <= live - 1);
+        assertTrue(forwardingListener.close());
+        assertTrue(TopicMessageDeliverable.getLiveDeliverables() <= live - 2);
+        assertFalse(forwardingListener.hasObservers());
+    }
+    @Test
+    public void deliveryExecutorFactoryTest(){
+        final int n = 1000;
+        List<DeliveryMode> requested = Collections.synchronizedList(new ArrayList<>());
+        DeliveryExecutorFactory factory = (t, mode) -> {
+            requested.add(mode);
+            return DeliveryPool.getExecutorFactory().getExecutor(t, mode);
+        };
+        // SHARDED deliverables are delivered by the dispatcher of the listener, without executor
+        List<DeliveryMode> modes = Arrays.asList(DeliveryMode.THREAD_PER_TOPIC, DeliveryMode.POOLED, DeliveryMode.VIRTUAL);
+        for (DeliveryMode mode : modes) {
+            TopicMessageDeliverable tmp = new TopicMessageDeliverable(topic, mode, DeliveryProfile.getDefault(), factory);
+            OrderObserver observer = new OrderObserver();
+            tmp.addObserver(observer);
+            for (int i = 0; i < n; i++)
+                tmp.addMessage(new MqttMessage(topic, message, 0, false, i, UUID.randomUUID()));
+
+            // VIRTUAL falls back to platform threads before Java 21
+            assertTrue(tmp.drain(10, TimeUnit.SECONDS));
+            assertEquals(n, observer.received.get());
+            assertTrue(observer.ordered);
+            tmp.stop();
+        }
+        assertEquals(modes, requested);
+    }
+    @Test
+    public void shardedDispatcherTest(){
+        final int n = 1000, devices = 16;
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID(), DeliveryMode.SHARDED);
+        Map<String, Long> last = new ConcurrentHashMap<>();
+        AtomicInteger received = new AtomicInteger(), unordered = new AtomicInteger();
+        MqttMessageObserver sharded = (t, m) -> {
+            Long previous = last.put(t, m.getSequence());
+            if (previous != null && previous >= m.getSequence())
+                unordered.incrementAndGet();
+            received.incrementAndGet();
+        };
+        forwardingListener.addObserver("devices/#", sharded);
+        ShardedDispatcher dispatcher = forwardingListener.getDispatcher();
+        assertNotNull(dispatcher);
+        assertTrue(dispatcher.getShards() > 0);
+        // shared with the other tests, only what is dispatched here is counted
+        long before = 0;
+        for (int i = 0; i < dispatcher.getShards(); i++)
+            before += dispatcher.getDispatched(i);
+
+        for (int i = 0; i < n; i++)
+            for (int d = 0; d < devices; d++)
+                forwardingListener.messageArrived("devices/" + d, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+
+        assertTrue(dispatcher.drain(10, TimeUnit.SECONDS));
+        assertEquals(n * devices, received.get());
+        assertEquals(0, unordered.get());
+        long dispatched = 0;
+        for (int i = 0; i < dispatcher.getShards(); i++) {
+            dispatched += dispatcher.getDispatched(i);
+            assertEquals(0, dispatcher.getQueueDepth(i));
+            assertTrue(dispatcher.getUtilization(i) >= 0 && dispatcher.getUtilization(i) <= 1);
+        }
+        assertEquals(n * devices, dispatched - before);
+        assertEquals(dispatcher.shardOf("devices/1"), dispatcher.shardOf("devices/1"));
+
+        // one dispatcher for all the listeners
+        ForwardingListener other = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID(), DeliveryMode.SHARDED);
+        other.addObserver("devices/#", sharded);
+        assertSame(dispatcher, other.getDispatcher());
+
+        // the last SHARDED subscription removed releases the dispatcher, without stopping it for the others
+        assertTrue(forwardingListener.removeObserver("devices/#", sharded));
+        assertTrue(dispatcher.isActive());
+        assertNull(forwardingListener.getDispatcher());
+
+        forwardingListener.addObserver("devices/#", sharded);
+        assertSame(dispatcher, forwardingListener.getDispatcher());
+        assertTrue(forwardingListener.close());
+        assertTrue(dispatcher.isActive());
+        assertNull(forwardingListener.getDispatcher());
+        assertTrue(other.close());
+        assertSame(dispatcher, DeliveryPool.getSharedDispatcher());
+    }
+    @Test
+    public void shardedDispatcherBoundTest() throws InterruptedException {
+        DeliveryProfile profile = new DeliveryProfile("bounded");
+        profile.setCapacity(2);
+        profile.setOverflowPolicy(BoundedMailbox.OverflowPolicy.DROP_NEWEST);
+        ShardedDispatcher dispatcher = new ShardedDispatcher(1, profile);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        TopicMessageDeliverable deliverable = new TopicMessageDeliverable("a", DeliveryMode.SHARDED, DeliveryProfile.getDefault());
+        deliverable.addObserver((MqttMessageObserver) (t, m) -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            received.incrementAndGet();
+        });
+
+        // the shard queue is bounded as the profile, the one being delivered and two waiting are kept
+        int n = 10;
+        for (int i = 0; i < n; i++)
+            dispatcher.dispatch("a", new TopicMessageDeliverable[]{deliverable}, new MqttMessage("a", message, 0, false, i, null));
+        assertTrue(dispatcher.getDropped(0) >= n - 3);
+        assertTrue(dispatcher.getQueueDepth(0) <= 2);
+
+        release.countDown();
+        assertTrue(dispatcher.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, received.get() + dispatcher.getDropped(0));
+        dispatcher.stop();
+        deliverable.stop();
+    }
+    @Test
+    public void keyPartitionedObserverTest(){
+        final int n = 1000, devices = 8;
+        MqttMessage json = new MqttMessage("sensors/all", "{\"value\":{\"a\":[1,2]},\"device\":\"d1\",\"ResultValue\":1}".getBytes(), 0, false, 0, UUID.randomUUID());
+        assertEquals("d1", KeyExtractor.jsonField("device").keyOf(json));
+        assertNull(KeyExtractor.jsonField("missing").keyOf(json));
+        assertEquals("all", KeyExtractor.topicLevel(1).keyOf(json));
+        assertNull(KeyExtractor.topicLevel(2).keyOf(json));
+
+        Map<String, Long> last = new ConcurrentHashMap<>();
+        AtomicInteger unordered = new AtomicInteger();
+        CountDownLatch received = new CountDownLatch(n * devices);
+        MqttMessageObserver observer = (t, m) -> {
+            String device = (String) KeyExtractor.jsonField("device").keyOf(m);
+            Long previous = last.put(device, m.getSequence());
+            if (previous != null && previous >= m.getSequence())
+                unordered.incrementAndGet();
+            received.countDown();
+        };
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID());
+        forwardingListener.addObserver("sensors/all", observer, KeyExtractor.jsonField("device"));
+        int partitions = KeyPartitionedObserver.getConfiguredPartitions();
+
+        for (int i = 0; i < n; i++)
+            for (int d = 0; d < devices; d++)
+                forwardingListener.messageArrived("sensors/all", new org.eclipse.paho.client.mqttv3.MqttMessage(("{\"device\":\"d" + d + "\"}").getBytes()));
+        // the partitions deliver after the deliverable of the topic, they are not drained with the listener
+        try {
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail();
+        }
+        assertEquals(0, unordered.get());
+        assertEquals(devices, last.size());
+
+        // registering the same observer again starts no more partitions
+        int live = TopicMessageDeliverable.getLiveDeliverables();
+        forwardingListener.addObserver("sensors/all", observer, KeyExtractor.jsonField("device"));
+        assertEquals(live, TopicMessageDeliverable.getLiveDeliverables());
+        KeyPartitionedObserver rejected = new KeyPartitionedObserver(observer, KeyExtractor.jsonField("device"));
+        forwardingListener.addObserver("sensors/all", rejected);
+        assertEquals(live, TopicMessageDeliverable.getLiveDeliverables());
+        assertEquals(1, forwardingListener.countObservers("sensors/all"));
+        assertFalse(rejected.equals(observer));
+        assertFalse(observer.equals(rejected));
+
+        // removed with the original observer, the partitions are stopped as well
+        assertTrue(forwardingListener.removeObserver("sensors/all", observer));
+        assertTrue(TopicMessageDeliverable.getLiveDeliverables() <= live - 1 - partitions);
+    }
+    @Test
+    public void keyPartitionProfileTest() throws InterruptedException {
+        DeliveryProfile profile = new DeliveryProfile("bounded");
+        profile.setCapacity(2);
+        profile.setOverflowPolicy(BoundedMailbox.OverflowPolicy.DROP_NEWEST);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        MqttMessageObserver observer = (t, m) -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            received.incrementAndGet();
+        };
+        ExecutorService workers = Executors.newCachedThreadPool();
+        KeyPartitionedObserver partitioned = new KeyPartitionedObserver(observer, KeyExtractor.jsonField("device"), 1, workers, "sensors/all", profile);
+
+        // the partition is bounded as the profile, the one being processed and two waiting are kept
+        int n = 10;
+        for (int i = 0; i < n; i++)
+            partitioned.update("sensors/all", new MqttMessage("sensors/all", "{\"device\":\"d\"}".getBytes(), 0, false, i, null));
+        assertTrue(partitioned.getDroppedMessages() >= n - 3);
+
+        release.countDown();
+        assertTrue(partitioned.drain(10, TimeUnit.SECONDS));
+        assertEquals(n, received.get() + partitioned.getDroppedMessages());
+        partitioned.stop();
+        workers.shutdown();
+    }
+    @Test
     public void forwardingListenerSimpleTest(){
         TestConnectionObserver connectionObserver = new TestConnectionObserver();
         ForwardingListener forwardingListener = new ForwardingListener(connectionObserver,UUID.randomUUID());
@@ -92,6 +540,105 @@ public class MqttPackageTest {
         assertEquals(true, forwardingListener.getListeningTopics().isEmpty());
 
 
+    }
+    @Test
+    public void forwardingListenerFanOutTest(){
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(),UUID.randomUUID());
+        String concrete = "a/b/c";
+        TestObserver single = new TestObserver(concrete), multi = new TestObserver(concrete), late = new TestObserver(concrete);
+
+        forwardingListener.addObserver("a/+/c", single);
+        forwardingListener.addObserver("a/#", multi);
+        forwardingListener.messageArrived(concrete, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        assertTrue(forwardingListener.drain(10, TimeUnit.SECONDS));
+        assertTrue(single.received && multi.received);
+
+        // the topic is already compiled, the new subscription must be added to its route
+        forwardingListener.addObserver(concrete, late);
+        single.received = multi.received = false;
+        forwardingListener.messageArrived(concrete, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        assertTrue(forwardingListener.drain(10, TimeUnit.SECONDS));
+        assertTrue(single.received && multi.received && late.received);
+
+        // and the removed one dropped from it
+        assertEquals(true, forwardingListener.removeObserver("a/#", multi));
+        single.received = multi.received = late.received = false;
+        forwardingListener.messageArrived(concrete, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        assertTrue(forwardingListener.drain(10, TimeUnit.SECONDS));
+        assertTrue(single.received && late.received);
+        assertEquals(false, multi.received);
+    }
+    @Test
+    public void ingestOrderTest(){
+        final int n = 3000;
+        final String[] topics = {"a/b", "a/c", "c"};
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID());
+        Map<String, List<Integer>> wildcard = new ConcurrentHashMap<>(), concrete = new ConcurrentHashMap<>();
+        forwardingListener.addObserver("a/#", (MqttMessageObserver) (t, m) -> wildcard.computeIfAbsent(t, k -> new ArrayList<>()).add(Integer.valueOf(new String(m.getPayload()))));
+        forwardingListener.addObserver("a/b", (MqttMessageObserver) (t, m) -> concrete.computeIfAbsent(t, k -> new ArrayList<>()).add(Integer.valueOf(new String(m.getPayload()))));
+        forwardingListener.addObserver("c", (MqttMessageObserver) (t, m) -> concrete.computeIfAbsent(t, k -> new ArrayList<>()).add(Integer.valueOf(new String(m.getPayload()))));
+
+        for (int i = 0; i < n; i++)
+            forwardingListener.messageArrived(topics[i % topics.length], new org.eclipse.paho.client.mqttv3.MqttMessage(String.valueOf(i).getBytes()));
+        assertTrue(forwardingListener.close(10, TimeUnit.SECONDS));
+
+        // every subscription receives all the messages of each matching topic, in arrival order
+        List<Integer> expected[] = new List[topics.length];
+        for (int t = 0; t < topics.length; t++) {
+            expected[t] = new ArrayList<>();
+            for (int i = t; i < n; i += topics.length)
+                expected[t].add(i);
+        }
+        assertEquals(expected[0], wildcard.get("a/b"));
+        assertEquals(expected[1], wildcard.get("a/c"));
+        assertEquals(2, wildcard.size());
+        assertEquals(expected[0], concrete.get("a/b"));
+        assertEquals(expected[2], concrete.get("c"));
+        assertEquals(2, concrete.size());
+    }
+    @Test
+    public void routeCacheTest(){
+        final int n = 1000, capacity = 64;
+        Configurator conf = Configurator.getDefaultConfig();
+        conf.setSetting(BrokerServiceConst.ROUTE_CACHE_SIZE, capacity);
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID());
+        conf.setSetting(BrokerServiceConst.ROUTE_CACHE_SIZE, 4096);
+        AtomicInteger received = new AtomicInteger();
+        forwardingListener.addObserver("a/#", (MqttMessageObserver) (t, m) -> received.incrementAndGet());
+
+        // the routes of the distinct topics are evicted and compiled again when the topic comes back
+        for (int i = 0; i < 2 * n; i++) {
+            forwardingListener.messageArrived("a/" + (i % n), new org.eclipse.paho.client.mqttv3.MqttMessage(String.valueOf(i).getBytes()));
+            assertTrue(forwardingListener.getCompiledRoutes() <= capacity);
+        }
+        assertTrue(forwardingListener.close(10, TimeUnit.SECONDS));
+        assertEquals(2 * n, received.get());
+    }
+    @Test
+    public void messagePerSubscriptionTest() throws Exception {
+        // a thread per subscription, so both observers run at the same time
+        ForwardingListener forwardingListener = new ForwardingListener(new TestConnectionObserver(), UUID.randomUUID(), DeliveryMode.THREAD_PER_TOPIC);
+        CountDownLatch changed = new CountDownLatch(1), checked = new CountDownLatch(1);
+        AtomicInteger intact = new AtomicInteger();
+        forwardingListener.addObserver("a/#", (MqttMessageObserver) (t, m) -> {
+            m.setPayload(new byte[0]);
+            changed.countDown();
+        });
+        forwardingListener.addObserver("a/+", (MqttMessageObserver) (t, m) -> {
+            try {
+                // the other subscription changed its message meanwhile, this one is not affected
+                assertTrue(changed.await(10, TimeUnit.SECONDS));
+                if (Arrays.equals(message, m.getPayload()))
+                    intact.incrementAndGet();
+            } catch (InterruptedException e) {
+                fail();
+            }
+            checked.countDown();
+        });
+        forwardingListener.messageArrived("a/b", new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        assertTrue(checked.await(10, TimeUnit.SECONDS));
+        assertEquals(1, intact.get());
+        forwardingListener.close();
     }
     private void silentSleep(int sleepTime){
         try {
@@ -192,9 +739,334 @@ public class MqttPackageTest {
 
     }
 
+    @Test
+    public void topicMatchCacheTest(){
+        Topic wild = new Topic("a/+/c", 64);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(true, wild.equals("a/" + i + "/c"));
+            assertEquals(false, wild.equals("b/" + i + "/c"));
+        }
+        assertEquals(true, wild.getMatchCache().size() <= 64);
+        assertEquals(2000 - 64, wild.getMatchCache().getEvictions());
+
+        assertEquals(false, wild.equals("b/999/c"));
+        assertEquals(1, wild.getMatchCache().getHits());
+        assertEquals(null, new Topic(topic).getMatchCache());
+
+        Topic noCache = new Topic("a/#", 0);
+        assertEquals(true, noCache.equals("a/b"));
+        assertEquals(0, noCache.getMatchCache().size());
+
+        // a capacity not divisible by the stripes is not exceeded
+        TopicMatchCache striped = new TopicMatchCache(66);
+        for (int i = 0; i < 1000; i++)
+            striped.put("a/" + i, true);
+        assertEquals(66, striped.size());
+    }
+    @Test
+    public void payloadViewTest() throws Exception {
+        byte[] payload = "head{\"ResultValue\":1}".getBytes();
+        MqttMessage msg = new MqttMessage(topic, payload, 0, false, 0, UUID.randomUUID());
+
+        java.nio.ByteBuffer view = msg.getPayloadBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(payload.length, view.remaining());
+        try {
+            view.put((byte) 0);
+            fail("the view must be read-only");
+        } catch (java.nio.ReadOnlyBufferException ignored) {
+        }
+
+        // views and streams share the payload array instead of copying it
+        payload[4] = '[';
+        assertEquals('[', view.get(4));
+        java.nio.ByteBuffer body = msg.getPayloadBuffer(4, payload.length - 4);
+        assertEquals(0, body.position());
+        assertEquals('[', body.get(0));
+        assertEquals('[', msg.getPayloadStream(4, 1).read());
+        payload[4] = '{';
+
+        assertEquals("{\"ResultValue\":1}", msg.decodePayload(4, payload.length - 4, new DefaultDeserializer(), String.class));
+        assertEquals(new String(payload), msg.decodePayload(new DefaultDeserializer(), String.class));
+        assertEquals("{\"ResultValue\":1}", new DefaultDeserializer().deserialize(body, String.class));
+        assertEquals(0, body.position());
+        assertEquals("head", new DefaultDeserializer().deserialize(msg.getPayloadStream(0, 4), String.class));
+
+        try {
+            msg.getPayloadBuffer(4, payload.length);
+            fail("the region is outside of the payload");
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+
+        MqttMessage empty = new MqttMessage(topic, null, 0, false, 0, UUID.randomUUID());
+        assertEquals(0, empty.getPayloadBuffer().remaining());
+        assertEquals(-1, empty.getPayloadStream().read());
+    }
+
+    @Test
+    public void typedPayloadTest() throws Exception {
+        AtomicInteger decodings = new AtomicInteger();
+        DefaultDeserializer deserializer = new DefaultDeserializer() {
+            @Override
+            public <T> T deserialize(byte[] bytes, int offset, int length, Class<T> tClass) throws java.io.IOException {
+                decodings.incrementAndGet();
+                return super.deserialize(bytes, offset, length, tClass);
+            }
+        };
+        TopicMessageDeliverable deliverable = new TopicMessageDeliverable(topic);
+        Set<Object> payloads = Collections.newSetFromMap(new IdentityHashMap<>());
+        AtomicInteger received = new AtomicInteger();
+        for (int i = 0; i < 5; i++)
+            deliverable.addObserver(new TypedMqttMessageObserver<String>() {
+                @Override
+                public void update(String topic, MqttMessage message, String payload) {
+                    synchronized (payloads) {
+                        payloads.add(payload);
+                    }
+                    received.incrementAndGet();
+                }
+
+                @Override
+                public Class<String> getPayloadType() {
+                    return String.class;
+                }
+
+                @Override
+                public eu.linksmart.services.utils.serialization.Deserializer getDeserializer() {
+                    return deserializer;
+                }
+            });
+
+        deliverable.addMessage(new MqttMessage(topic, message, 0, false, 0, UUID.randomUUID()));
+        Instant deadline = Instant.now().plus(Duration.ofSeconds(5));
+        while (received.get() < 5 && Instant.now().isBefore(deadline))
+            Thread.sleep(1);
+        deliverable.stop();
+
+        assertEquals(5, received.get());
+        assertEquals("the payload must be decoded once and shared", 1, decodings.get());
+        assertEquals(1, payloads.size());
+        assertEquals("world", payloads.iterator().next());
+
+        // changing the payload invalidates the decoded one
+        MqttMessage msg = new MqttMessage(topic, message, 0, false, 1, UUID.randomUUID());
+        assertSame(msg.getPayload(String.class, deserializer), msg.getPayload(String.class, deserializer));
+        msg.setPayload("hello".getBytes());
+        assertEquals("hello", msg.getPayload(String.class, deserializer));
+        assertEquals(3, decodings.get());
+    }
+
+    @Test
+    public void binaryCodecTest(){
+        UUID origin = UUID.randomUUID();
+        MqttMessage[] messages = {
+                new MqttMessage("devices/\u00fcber/temperature", "{\"ResultValue\":1}".getBytes(), 2, true, 1L << 40, origin),
+                new MqttMessage(topic, new byte[0], 0, false, -1L, null),
+                new MqttMessage()
+        };
+        for (MqttMessage msg : messages) {
+            byte[] bytes = msg.toBinary();
+            assertEquals(MqttMessageCodec.sizeOf(msg), bytes.length);
+            assertTrue(bytes.length < msg.toBytes().length);
+            assertEquals(msg.getMessageHash(), MqttMessage.deserialize(bytes).getMessageHash());
+            MqttMessage decoded = MqttMessageCodec.decode(bytes);
+            assertEquals(msg.getTopic(), decoded.getTopic());
+            assertArrayEquals(msg.getPayload(), decoded.getPayload());
+            assertEquals(msg.getQoS(), decoded.getQoS());
+            assertEquals(msg.isRetained(), decoded.isRetained());
+            assertEquals(msg.getSequence(), decoded.getSequence());
+            assertEquals(msg.getOriginProtocol(), decoded.getOriginProtocol());
+        }
+
+        // several messages written back to back in a caller buffer
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(1024);
+        for (MqttMessage msg : messages)
+            msg.writeTo(buffer);
+        buffer.flip();
+        for (MqttMessage msg : messages)
+            assertEquals(msg.getMessageHash(), MqttMessageCodec.decode(buffer).getMessageHash());
+        assertFalse(buffer.hasRemaining());
+
+        // Java serialization is still read
+        assertEquals(messages[0].getMessageHash(), MqttMessage.deserialize(messages[0].toBytes()).getMessageHash());
+
+        byte[] truncated = Arrays.copyOf(messages[0].toBinary(), 10);
+        assertNull(MqttMessage.deserialize(truncated));
+    }
+
+    @Test
+    public void duplicateFilterTest() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(200, 4, 8);
+        assertFalse(filter.isDuplicate(topic, message));
+        assertTrue(filter.isDuplicate(topic, message));
+        assertFalse(filter.isDuplicate(topic2, message));
+        assertFalse(filter.isDuplicate(topic, "hello".getBytes()));
+        assertEquals(0.25, filter.getSuppressionRate(), 0.0);
+
+        // the window passed
+        Thread.sleep(300);
+        assertFalse(filter.isDuplicate(topic, message));
+
+        // the memory is bounded, the oldest messages are forgotten first
+        for (int i = 0; i < 100; i++)
+            filter.isDuplicate(topic, ("" + i).getBytes());
+        assertFalse(filter.isDuplicate(topic, "0".getBytes()));
+        assertTrue(filter.isDuplicate(topic, "99".getBytes()));
+
+        // checked and remembered concurrently without locks
+        DuplicateFilter shared = new DuplicateFilter(60000, 4, 1 << 16);
+        AtomicInteger missed = new AtomicInteger(), wrong = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = t * 1000L + 1;
+            threads[t] = new Thread(() -> {
+                for (long i = base; i < base + 1000; i++) {
+                    if (shared.isDuplicate(i))
+                        wrong.incrementAndGet();
+                    if (!shared.contains(i))
+                        missed.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, wrong.get());
+        assertEquals(0, missed.get());
+        assertEquals(threads.length * 1000, shared.getSuppressed());
+
+        // redeliveries are dropped before reaching the observers
+        ForwardingListener forwardingListener = new ForwardingListener(null, UUID.randomUUID());
+        forwardingListener.setDuplicateFilter(new DuplicateFilter(10000, 4, 1024));
+        AtomicInteger received = new AtomicInteger();
+        forwardingListener.addObserver(topic, (MqttMessageObserver) (t, m) -> received.incrementAndGet());
+        for (int i = 0; i < 3; i++) {
+            forwardingListener.messageArrived(topic, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+            forwardingListener.messageArrived(topic, new org.eclipse.paho.client.mqttv3.MqttMessage(("" + i).getBytes()));
+        }
+        assertTrue(forwardingListener.close(5, TimeUnit.SECONDS));
+        assertEquals(4, received.get());
+        assertEquals(2, forwardingListener.getDuplicateFilter().getSuppressed());
+    }
+
+    @Test
+    public void autoblacklistingTest() throws Exception {
+        ForwardingListener forwardingListener = new ForwardingListener(null, UUID.randomUUID());
+        forwardingListener.setAutoblacklisting(true);
+        AtomicInteger received = new AtomicInteger();
+        forwardingListener.addObserver(topic, (MqttMessageObserver) (t, m) -> received.incrementAndGet());
+
+        // only the echo of our message is dropped, other messages of the same topic are delivered
+        forwardingListener.addPublishedMessage(topic, message);
+        forwardingListener.messageArrived(topic, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        forwardingListener.messageArrived(topic, new org.eclipse.paho.client.mqttv3.MqttMessage("foreign".getBytes()));
+        assertTrue(forwardingListener.close(5, TimeUnit.SECONDS));
+        assertEquals(1, received.get());
+        assertEquals(1, forwardingListener.getSuppressedEchoes());
+        assertEquals(1, forwardingListener.getPassedEchoChecks());
+
+        // the published messages are bounded and concurrently recorded
+        Thread[] publishers = new Thread[4];
+        for (int p = 0; p < publishers.length; p++) {
+            final int id = p;
+            publishers[p] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++)
+                    forwardingListener.addPublishedMessage("results/" + id + "/" + i, message);
+            });
+            publishers[p].start();
+        }
+        for (Thread publisher : publishers)
+            publisher.join();
+        // our first message was forgotten, therefore it is delivered again
+        forwardingListener.addObserver(topic, (MqttMessageObserver) (t, m) -> received.incrementAndGet());
+        forwardingListener.messageArrived(topic, new org.eclipse.paho.client.mqttv3.MqttMessage(message));
+        assertTrue(forwardingListener.close(5, TimeUnit.SECONDS));
+        assertEquals(2, received.get());
+    }
+
+    @Test
+    public void countObserversTest() {
+        ForwardingListener forwardingListener = new ForwardingListener(null, UUID.randomUUID());
+        MqttMessageObserver first = (t, m) -> { }, second = (t, m) -> { };
+        assertEquals(0, forwardingListener.countObservers(topic));
+
+        forwardingListener.addObserver(topic, first);
+        forwardingListener.addObserver(topic, second);
+        forwardingListener.addObserver(topic2, first);
+        assertEquals(2, forwardingListener.countObservers(topic));
+        assertEquals(1, forwardingListener.countObservers(topic2));
+
+        assertTrue(forwardingListener.removeObserver(topic, first));
+        assertEquals(1, forwardingListener.countObservers(topic));
+        assertFalse(forwardingListener.removeObserver(topic, first));
+        assertTrue(forwardingListener.removeObserver(topic, second));
+        // the last observer gone, the topic can be unsubscribed
+        assertEquals(0, forwardingListener.countObservers(topic));
+        assertEquals(1, forwardingListener.countObservers(topic2));
+        forwardingListener.close();
+    }
+    @Test
+    public void topicMatcherTest(){
+        String[] filters = {"#", "+", "a/#", "a/+", "a/+/c", "+/+", "/#", "/+/c", "a/b/c", "a//c", "+/b/#", "$SYS/#"};
+        String[] topics = {"a", "a/b", "a/b/c", "a//c", "/a/c", "/", "", "b/b/c/d", "$SYS/load", "ab/b"};
+
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : filters)
+            trie.put(filter, filter);
+
+        for (String t : topics) {
+            Set<String> matched = new HashSet<>();
+            for (String filter : filters)
+                if (new TopicMatcher(filter).matches(t))
+                    matched.add(filter);
+            assertEquals(t, new HashSet<>(trie.match(t)), matched);
+        }
+
+        assertEquals(true, new TopicMatcher("a/#").matches("a"));
+        assertEquals(true, new TopicMatcher("a/+/c").matches("a//c"));
+        assertEquals(false, new TopicMatcher("a/+").matches("a/b/c"));
+        assertEquals(false, new TopicMatcher("a/b").matches("a/bc"));
+        assertEquals(false, new TopicMatcher("#").matches("$SYS/load"));
+        assertEquals(true, new TopicMatcher("$SYS/#").matches("$SYS/load"));
+    }
+    @Test
+    public void topicTrieTest(){
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("a/b/c","exact");
+        trie.put("a/+/c","single");
+        trie.put("a/#","multi");
+        trie.put("#","all");
+        trie.put("+/b","second");
+
+        assertEquals(new HashSet<>(Arrays.asList("exact","single","multi","all")), new HashSet<>(trie.match("a/b/c")));
+        assertEquals(new HashSet<>(Arrays.asList("single","multi","all")), new HashSet<>(trie.match("a/x/c")));
+        assertEquals(new HashSet<>(Arrays.asList("multi","all","second")), new HashSet<>(trie.match("a/b")));
+        assertEquals(new HashSet<>(Arrays.asList("multi","all")), new HashSet<>(trie.match("a")));
+        assertEquals(Collections.singletonList("all"), trie.match("b/c"));
+        assertEquals(true, trie.match("$SYS/b").isEmpty());
+
+        assertEquals(true, trie.remove("a/#","multi"));
+        assertEquals(false, trie.remove("a/#","multi"));
+        assertEquals(new HashSet<>(Arrays.asList("exact","single","all")), new HashSet<>(trie.match("a/b/c")));
+
+        trie.remove("a/b/c","exact");
+        trie.remove("a/+/c","single");
+        trie.remove("#","all");
+        trie.remove("+/b","second");
+        assertEquals(true, trie.isEmpty());
+        assertEquals(true, trie.match("a/b/c").isEmpty());
+
+        try {
+            trie.put("a/#/c", "invalid");
+            fail();
+        }catch (IllegalArgumentException ignored){
+            // expected
+        }
+    }
+
     private class TestObserver implements MqttMessageObserver {
         String topic;
-        boolean received = false;
+        volatile boolean received = false;
 
         public TestObserver(String topic) {
             this.topic = topic;
@@ -207,6 +1079,41 @@ public class MqttPackageTest {
 
         }
     }
+    private class OrderObserver implements MqttMessageObserver {
+        final AtomicInteger received = new AtomicInteger();
+        volatile boolean ordered = true;
+        private long last = -1;
+
+        @Override
+        public void update(String topic, MqttMessage orgMessage) {
+            ordered = ordered && orgMessage.getSequence() == last + 1;
+            last = orgMessage.getSequence();
+            received.incrementAndGet();
+        }
+    }
+    private class BatchObserver implements BatchMqttMessageObserver {
+        final AtomicInteger received = new AtomicInteger(), batches = new AtomicInteger();
+        final Set<String> topics = ConcurrentHashMap.newKeySet();
+        final int batchSize;
+        volatile boolean ordered = true, sized = true;
+        private long last = -1;
+
+        BatchObserver(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void update(String topic, List<MqttMessage> batch) {
+            sized = sized && !batch.isEmpty() && batch.size() <= batchSize;
+            for (MqttMessage message : batch) {
+                ordered = ordered && message.getSequence() == last + 1;
+                last = message.getSequence();
+            }
+            topics.add(topic);
+            batches.incrementAndGet();
+            received.addAndGet(batch.size());
+        }
+    }
     private class TestConnectionObserver implements Observer {
 
         public ForwardingListener forwardingListener;